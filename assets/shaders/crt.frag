@@ -0,0 +1,61 @@
+// Final pass of the CRT post-processing. Bends the screen, adds the bloom, and
+// darkens the gaps between the scanlines and between the phosphor stripes.
+// Each effect is turned off by setting its strength to zero.
+#ifdef GL_ES
+precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+
+uniform sampler2D u_texture;
+uniform sampler2D u_bloomTexture;
+
+// The size of the output in pixels.
+uniform vec2 u_resolution;
+
+// Strength of each effect.
+uniform float u_curvature;
+uniform float u_bloom;
+uniform float u_scanlineStrength;
+uniform float u_maskStrength;
+
+// The distance between scanlines in output pixels, and whether they run
+// vertically (1.0) or horizontally (0.0) across the output.
+uniform float u_scanlinePeriod;
+uniform float u_scanlineVertical;
+
+void main() {
+    // Barrel distortion about the centre of the screen.
+    vec2 centred = (v_texCoords * 2.0) - 1.0;
+    centred *= 1.0 + (u_curvature * dot(centred, centred));
+    vec2 uv = (centred * 0.5) + 0.5;
+    if ((uv.x < 0.0) || (uv.x > 1.0) || (uv.y < 0.0) || (uv.y > 1.0)) {
+        gl_FragColor = vec4(0.0, 0.0, 0.0, 1.0);
+        return;
+    }
+
+    vec3 colour = texture2D(u_texture, uv).rgb;
+    colour += texture2D(u_bloomTexture, uv).rgb * u_bloom;
+
+    // Scanlines follow the bent screen, so are based on the distorted position.
+    vec2 position = uv * u_resolution;
+    float across = mix(position.y, position.x, u_scanlineVertical);
+    float scanline = 0.5 + (0.5 * cos(6.2831853 * across / u_scanlinePeriod));
+    colour *= 1.0 - (u_scanlineStrength * (1.0 - scanline));
+
+    // Aperture grille, i.e. red, green and blue stripes at right angles to the
+    // scanlines.
+    float stripe = mod(floor(mix(gl_FragCoord.x, gl_FragCoord.y, u_scanlineVertical)), 3.0);
+    vec3 mask = vec3(1.0 - u_maskStrength);
+    if (stripe < 1.0) {
+        mask.r = 1.0;
+    } else if (stripe < 2.0) {
+        mask.g = 1.0;
+    } else {
+        mask.b = 1.0;
+    }
+    colour *= mask;
+
+    gl_FragColor = vec4(colour * v_color.rgb, 1.0);
+}
@@ -0,0 +1,22 @@
+// Separable gaussian blur for the CRT bloom, run once horizontally and once
+// vertically. Uses linear filtering to get nine taps out of five samples.
+#ifdef GL_ES
+precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+
+uniform sampler2D u_texture;
+
+// The size of one texel in the direction of the blur.
+uniform vec2 u_direction;
+
+void main() {
+    vec2 offset1 = u_direction * 1.3846153846;
+    vec2 offset2 = u_direction * 3.2307692308;
+    vec3 sum = texture2D(u_texture, v_texCoords).rgb * 0.2270270270;
+    sum += (texture2D(u_texture, v_texCoords + offset1).rgb + texture2D(u_texture, v_texCoords - offset1).rgb) * 0.3162162162;
+    sum += (texture2D(u_texture, v_texCoords + offset2).rgb + texture2D(u_texture, v_texCoords - offset2).rgb) * 0.0702702703;
+    gl_FragColor = vec4(sum, 1.0);
+}
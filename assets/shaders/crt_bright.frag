@@ -0,0 +1,19 @@
+// First pass of the CRT bloom. Keeps only the bright parts of the VIC screen,
+// which are then blurred and added back on top to make them glow.
+#ifdef GL_ES
+precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+
+uniform sampler2D u_texture;
+
+// The brightness below which nothing glows.
+uniform float u_threshold;
+
+void main() {
+    vec3 colour = texture2D(u_texture, v_texCoords).rgb;
+    float brightness = dot(colour, vec3(0.299, 0.587, 0.114));
+    gl_FragColor = vec4(colour * smoothstep(u_threshold, 1.0, brightness), 1.0);
+}
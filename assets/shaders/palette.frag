@@ -0,0 +1,18 @@
+// Converts the VIC's 4-bit palette indexes into colours. The screen texture is a
+// single channel texture holding one palette index per pixel, and the palette is
+// a 16x1 texture.
+#ifdef GL_ES
+precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+
+uniform sampler2D u_texture;
+uniform sampler2D u_palette;
+
+void main() {
+    float index = texture2D(u_texture, v_texCoords).a * 255.0;
+    vec3 colour = texture2D(u_palette, vec2((index + 0.5) / 16.0, 0.5)).rgb;
+    gl_FragColor = vec4(colour * v_color.rgb, 1.0);
+}
@@ -0,0 +1,66 @@
+// Draws the VIC's text screen from its tile data, i.e. the screen codes, cell
+// colours and glyphs, rather than from pixels. The tile data is a single channel
+// 256x20 texture laid out as described in Frame. The result is a palette index,
+// which is converted to a colour in the same way as palette.frag.
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+
+// There is no u_texture, since the screen texture only provides the coordinates.
+uniform sampler2D u_palette;
+uniform sampler2D u_tiles;
+
+// The size of the Frame in pixels.
+uniform vec2 u_frameSize;
+
+// The text screen's left, top, right and bottom edges, in Frame pixels.
+uniform vec4 u_textScreen;
+
+// The number of columns, the character size, and the background and border
+// colours.
+uniform vec4 u_cells;
+
+// Reads a byte of the tile data by its column and row. The offsets are kept as
+// a column and row, rather than a single offset, so that every value stays well
+// within the 2048 that mediump floats can hold exactly.
+float tileByte(float x, float y) {
+    return floor(texture2D(u_tiles, vec2((x + 0.5) / 256.0, (y + 0.5) / 20.0)).a * 255.0 + 0.5);
+}
+
+void main() {
+    vec2 pixel = floor(v_texCoords * u_frameSize);
+    float index = u_cells.w;
+
+    if ((pixel.x >= u_textScreen.x) && (pixel.x < u_textScreen.z)
+            && (pixel.y >= u_textScreen.y) && (pixel.y < u_textScreen.w)) {
+        vec2 textPos = pixel - u_textScreen.xy;
+        float column = floor(textPos.x / 8.0);
+        float bitNum = textPos.x - (column * 8.0);
+        float row = floor(textPos.y / u_cells.y);
+        float depth = textPos.y - (row * u_cells.y);
+        float matrixOffset = (row * u_cells.x) + column;
+        float matrixRow = floor(matrixOffset / 256.0);
+        float matrixColumn = matrixOffset - (matrixRow * 256.0);
+
+        float screenCode = tileByte(matrixColumn, matrixRow);
+        float colour = tileByte(matrixColumn, 2.0 + matrixRow);
+
+        // Each row of the glyph data holds the glyphs of 256 / character size codes.
+        float codesPerRow = 256.0 / u_cells.y;
+        float glyphRow = floor(screenCode / codesPerRow);
+        float glyphColumn = ((screenCode - (glyphRow * codesPerRow)) * u_cells.y) + depth;
+        float bitmap = tileByte(glyphColumn, 4.0 + glyphRow);
+
+        // The leftmost pixel is the top bit of the glyph row.
+        float bit = mod(floor(bitmap / exp2(7.0 - bitNum)), 2.0);
+        index = (bit > 0.5 ? colour : u_cells.z);
+    }
+
+    vec3 colour = texture2D(u_palette, vec2((index + 0.5) / 16.0, 0.5)).rgb;
+    gl_FragColor = vec4(colour * v_color.rgb, 1.0);
+}
@@ -0,0 +1,444 @@
+package emu.attackufo;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.Texture.TextureFilter;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Gives the VIC screen the look of an arcade CRT monitor, i.e. scanlines,
+ * phosphor mask, curvature and bloom. The VIC screen is drawn in to a scene
+ * FrameBuffer, which is then drawn to the display through the CRT shader. For
+ * the bloom, the bright parts of the scene are extracted at half resolution
+ * and blurred by ping-ponging between two more FrameBuffers.
+ * 
+ * The shaders are compiled once, and the FrameBuffers are only created when the
+ * display size changes, so nothing is allocated per frame.
+ * 
+ * In auto quality mode, the quality level is lowered whenever the display can't
+ * keep up with its refresh rate, and a higher level is tried again after a
+ * while. libGDX has no GPU timer queries on GLES 2, so the GPU frame time is
+ * measured as the time between frames, which rises above the refresh period
+ * once the GPU becomes the bottleneck.
+ * 
+ * @author Lance Ewing
+ */
+public class CrtPostProcessor implements Disposable {
+
+    /**
+     * Frame times are averaged with an exponential moving average, where each new
+     * frame time contributes this fraction.
+     */
+    private static final float FRAME_TIME_SMOOTHING = 0.05f;
+
+    /**
+     * The quality is lowered when the average frame time is this much longer than
+     * the refresh period.
+     */
+    private static final float LOWER_THRESHOLD = 1.2f;
+
+    /**
+     * A higher quality is only tried when the average frame time is within this
+     * much of the refresh period.
+     */
+    private static final float HIGHER_THRESHOLD = 1.05f;
+
+    /**
+     * The number of frames that the average must stay over the lower threshold
+     * before the quality is lowered.
+     */
+    private static final int LOWER_FRAMES = 60;
+
+    /**
+     * The number of frames that the average must stay under the higher threshold
+     * before a higher quality is tried. This doubles each time a higher level
+     * turns out to be too slow, so that the quality doesn't keep bouncing.
+     */
+    private static final int MIN_HIGHER_FRAMES = 600;
+    private static final int MAX_HIGHER_FRAMES = 600 * 32;
+
+    /**
+     * The number of frames to ignore after a quality change, while the frame time
+     * settles.
+     */
+    private static final int SETTLE_FRAMES = 30;
+
+    // The strengths of each effect.
+    private static final float SCANLINE_STRENGTH = 0.35f;
+    private static final float MASK_STRENGTH = 0.2f;
+    private static final float CURVATURE = 0.04f;
+    private static final float BLOOM = 0.6f;
+    private static final float BLOOM_THRESHOLD = 0.5f;
+
+    // The cached shader programs.
+    private ShaderProgram crtShader;
+    private ShaderProgram brightShader;
+    private ShaderProgram blurShader;
+
+    // The scene FrameBuffer, and the two half resolution FrameBuffers that the bloom
+    // ping-pongs between.
+    private FrameBuffer sceneBuffer;
+    private FrameBuffer bloomBuffer;
+    private FrameBuffer blurBuffer;
+
+    // Projections for drawing to the display and to the bloom FrameBuffers.
+    private Matrix4 displayProjection = new Matrix4();
+    private Matrix4 bloomProjection = new Matrix4();
+
+    private int width;
+    private int height;
+
+    /**
+     * The quality level set by the user. In auto quality mode, this is the
+     * highest level that will be used.
+     */
+    private CrtQuality quality = CrtQuality.OFF;
+
+    /**
+     * The quality level currently in use.
+     */
+    private CrtQuality activeQuality = CrtQuality.OFF;
+
+    /**
+     * Whether the active quality level is chosen automatically from the measured
+     * frame time.
+     */
+    private boolean autoQuality = true;
+
+    // Scanline settings, which depend on how the VIC screen is drawn.
+    private float scanlinePeriod = 2.0f;
+    private boolean scanlinesVertical;
+
+    // Frame time measurement.
+    private float refreshPeriod;
+    private float avgFrameTime;
+    private int slowFrames;
+    private int fastFrames;
+    private int higherFrames = MIN_HIGHER_FRAMES;
+    private int settleFrames;
+    private boolean tryingHigher;
+
+    /**
+     * Constructor for CrtPostProcessor.
+     */
+    public CrtPostProcessor() {
+        crtShader = createShader("shaders/crt.frag");
+        brightShader = createShader("shaders/crt_bright.frag");
+        blurShader = createShader("shaders/crt_blur.frag");
+
+        int refreshRate = Gdx.graphics.getDisplayMode().refreshRate;
+        refreshPeriod = 1.0f / (refreshRate > 0 ? refreshRate : 60);
+        avgFrameTime = refreshPeriod;
+    }
+
+    /**
+     * Creates a ShaderProgram from the standard batch vertex shader and the given
+     * fragment shader file.
+     * 
+     * @param fragmentShaderPath The path of the fragment shader in the assets.
+     * 
+     * @return The compiled ShaderProgram.
+     */
+    private ShaderProgram createShader(String fragmentShaderPath) {
+        ShaderProgram shader = new ShaderProgram(Gdx.files.internal("shaders/batch.vert").readString(),
+                Gdx.files.internal(fragmentShaderPath).readString());
+        if (!shader.isCompiled()) {
+            throw new GdxRuntimeException("Failed to compile " + fragmentShaderPath + ": " + shader.getLog());
+        }
+        return shader;
+    }
+
+    /**
+     * Recreates the FrameBuffers for the given display size. This should be
+     * called whenever the display is resized.
+     * 
+     * @param width  The width of the display in pixels.
+     * @param height The height of the display in pixels.
+     */
+    public void resize(int width, int height) {
+        if ((width == this.width) && (height == this.height)) {
+            return;
+        }
+        disposeBuffers();
+        this.width = width;
+        this.height = height;
+        if ((width <= 0) || (height <= 0)) {
+            return;
+        }
+
+        sceneBuffer = new FrameBuffer(Pixmap.Format.RGB888, width, height, false);
+        sceneBuffer.getColorBufferTexture().setFilter(TextureFilter.Linear, TextureFilter.Linear);
+
+        int bloomWidth = Math.max(1, width / 2);
+        int bloomHeight = Math.max(1, height / 2);
+        bloomBuffer = new FrameBuffer(Pixmap.Format.RGB888, bloomWidth, bloomHeight, false);
+        bloomBuffer.getColorBufferTexture().setFilter(TextureFilter.Linear, TextureFilter.Linear);
+        blurBuffer = new FrameBuffer(Pixmap.Format.RGB888, bloomWidth, bloomHeight, false);
+        blurBuffer.getColorBufferTexture().setFilter(TextureFilter.Linear, TextureFilter.Linear);
+
+        displayProjection.setToOrtho2D(0, 0, width, height);
+        bloomProjection.setToOrtho2D(0, 0, bloomWidth, bloomHeight);
+    }
+
+    /**
+     * Sets the frame rate that the display is expected to keep up with. This is
+     * the display's refresh rate when rendering continuously, but the Machine's
+     * frame rate when rendering is event driven.
+     * 
+     * @param frameRate The expected frame rate in frames per second.
+     */
+    public void setTargetFrameRate(int frameRate) {
+        refreshPeriod = 1.0f / (frameRate > 0 ? frameRate : 60);
+        changeActiveQuality(activeQuality);
+    }
+
+    /**
+     * Sets how the scanlines are drawn, which depends on how the VIC screen is
+     * scaled and rotated on the display.
+     * 
+     * @param scanlinePeriod    The distance between scanlines in display pixels.
+     * @param scanlinesVertical true if the scanlines run vertically on the display.
+     */
+    public void setScanlines(float scanlinePeriod, boolean scanlinesVertical) {
+        this.scanlinePeriod = Math.max(1.0f, scanlinePeriod);
+        this.scanlinesVertical = scanlinesVertical;
+    }
+
+    /**
+     * Updates the measured frame time, and in auto quality mode, adjusts the
+     * active quality level if needed. This should be called once per rendered
+     * frame.
+     * 
+     * @param deltaTime The time since the previous frame, in seconds.
+     */
+    public void update(float deltaTime) {
+        if (!autoQuality || (quality == CrtQuality.OFF)) {
+            activeQuality = quality;
+            return;
+        }
+
+        avgFrameTime += (deltaTime - avgFrameTime) * FRAME_TIME_SMOOTHING;
+        if (settleFrames > 0) {
+            settleFrames--;
+            return;
+        }
+
+        if (avgFrameTime > refreshPeriod * LOWER_THRESHOLD) {
+            fastFrames = 0;
+            if (++slowFrames >= LOWER_FRAMES) {
+                if (tryingHigher) {
+                    // The higher level was too slow, so wait longer before trying it again.
+                    higherFrames = Math.min(MAX_HIGHER_FRAMES, higherFrames * 2);
+                }
+                changeActiveQuality(activeQuality.lower());
+                tryingHigher = false;
+            }
+        } else if (avgFrameTime < refreshPeriod * HIGHER_THRESHOLD) {
+            slowFrames = 0;
+            fastFrames++;
+            if ((activeQuality != quality) && (fastFrames >= higherFrames)) {
+                changeActiveQuality(activeQuality.higher());
+                tryingHigher = true;
+            } else if (tryingHigher && (fastFrames >= LOWER_FRAMES)) {
+                // The higher level has held up.
+                tryingHigher = false;
+            }
+        } else {
+            slowFrames = 0;
+        }
+    }
+
+    /**
+     * Changes the active quality level, and resets the frame time measurement.
+     * 
+     * @param newQuality The new active quality level.
+     */
+    private void changeActiveQuality(CrtQuality newQuality) {
+        activeQuality = newQuality;
+        slowFrames = 0;
+        fastFrames = 0;
+        settleFrames = SETTLE_FRAMES;
+        avgFrameTime = refreshPeriod;
+    }
+
+    /**
+     * Returns whether the post-processing is currently active. If it isn't, then
+     * the VIC screen should be drawn straight to the display.
+     * 
+     * @return true if the post-processing is active.
+     */
+    public boolean isActive() {
+        return (activeQuality != CrtQuality.OFF) && (sceneBuffer != null);
+    }
+
+    /**
+     * Starts drawing the scene, i.e. the VIC screen, in to the scene FrameBuffer.
+     * This should only be called if isActive returns true.
+     */
+    public void beginScene() {
+        sceneBuffer.begin();
+        Gdx.gl.glClearColor(0, 0, 0, 1);
+        Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+    }
+
+    /**
+     * Ends drawing the scene, and then runs the post-processing passes, the last
+     * of which draws to the display. The batch is left with the default shader.
+     * 
+     * @param batch The SpriteBatch to draw the passes with.
+     */
+    public void endScene(SpriteBatch batch) {
+        sceneBuffer.end();
+
+        Texture scene = sceneBuffer.getColorBufferTexture();
+        Texture bloom = scene;
+        batch.disableBlending();
+
+        if (activeQuality == CrtQuality.HIGH) {
+            int bloomWidth = bloomBuffer.getWidth();
+            int bloomHeight = bloomBuffer.getHeight();
+
+            // Bright pass, downsampled to half resolution.
+            batch.setProjectionMatrix(bloomProjection);
+            batch.setShader(brightShader);
+            bloomBuffer.begin();
+            batch.begin();
+            brightShader.setUniformf("u_threshold", BLOOM_THRESHOLD);
+            drawFullScreen(batch, scene, bloomWidth, bloomHeight);
+            batch.end();
+            bloomBuffer.end();
+
+            // Blur horizontally in to the blur buffer, then vertically back again.
+            batch.setShader(blurShader);
+            blurBuffer.begin();
+            batch.begin();
+            blurShader.setUniformf("u_direction", 1.0f / bloomWidth, 0.0f);
+            drawFullScreen(batch, bloomBuffer.getColorBufferTexture(), bloomWidth, bloomHeight);
+            batch.end();
+            blurBuffer.end();
+
+            bloomBuffer.begin();
+            batch.begin();
+            blurShader.setUniformf("u_direction", 0.0f, 1.0f / bloomHeight);
+            drawFullScreen(batch, blurBuffer.getColorBufferTexture(), bloomWidth, bloomHeight);
+            batch.end();
+            bloomBuffer.end();
+
+            bloom = bloomBuffer.getColorBufferTexture();
+        }
+
+        // Final pass to the display.
+        bloom.bind(1);
+        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+        batch.setProjectionMatrix(displayProjection);
+        batch.setShader(crtShader);
+        batch.begin();
+        crtShader.setUniformi("u_bloomTexture", 1);
+        crtShader.setUniformf("u_resolution", width, height);
+        crtShader.setUniformf("u_curvature", (activeQuality.compareTo(CrtQuality.MEDIUM) >= 0 ? CURVATURE : 0.0f));
+        crtShader.setUniformf("u_bloom", (activeQuality == CrtQuality.HIGH ? BLOOM : 0.0f));
+        crtShader.setUniformf("u_scanlineStrength", SCANLINE_STRENGTH);
+        crtShader.setUniformf("u_maskStrength", MASK_STRENGTH);
+        crtShader.setUniformf("u_scanlinePeriod", scanlinePeriod);
+        crtShader.setUniformf("u_scanlineVertical", (scanlinesVertical ? 1.0f : 0.0f));
+        drawFullScreen(batch, scene, width, height);
+        batch.end();
+        batch.setShader(null);
+    }
+
+    /**
+     * Draws the whole of the given FrameBuffer texture over the whole of the
+     * current target. FrameBuffer textures are upside down, so are flipped.
+     * 
+     * @param batch   The SpriteBatch to draw with.
+     * @param texture The FrameBuffer texture to draw.
+     * @param width   The width of the current target.
+     * @param height  The height of the current target.
+     */
+    private void drawFullScreen(SpriteBatch batch, Texture texture, int width, int height) {
+        batch.draw(texture, 0, 0, width, height, 0, 0, texture.getWidth(), texture.getHeight(), false, true);
+    }
+
+    /**
+     * Sets the quality level. In auto quality mode, this is the highest level
+     * that will be used.
+     * 
+     * @param quality The CrtQuality to use.
+     */
+    public void setQuality(CrtQuality quality) {
+        this.quality = quality;
+        higherFrames = MIN_HIGHER_FRAMES;
+        tryingHigher = false;
+        changeActiveQuality(quality);
+        Gdx.graphics.requestRendering();
+    }
+
+    /**
+     * @return the quality level set by the user.
+     */
+    public CrtQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return the quality level currently in use.
+     */
+    public CrtQuality getActiveQuality() {
+        return activeQuality;
+    }
+
+    /**
+     * Sets whether the active quality level is chosen automatically from the
+     * measured frame time.
+     * 
+     * @param autoQuality true to choose the quality level automatically.
+     */
+    public void setAutoQuality(boolean autoQuality) {
+        this.autoQuality = autoQuality;
+        changeActiveQuality(quality);
+        Gdx.graphics.requestRendering();
+    }
+
+    /**
+     * @return true if the quality level is chosen automatically.
+     */
+    public boolean isAutoQuality() {
+        return autoQuality;
+    }
+
+    /**
+     * @return the average time between frames, in seconds.
+     */
+    public float getAvgFrameTime() {
+        return avgFrameTime;
+    }
+
+    /**
+     * Disposes the FrameBuffers.
+     */
+    private void disposeBuffers() {
+        if (sceneBuffer != null) {
+            sceneBuffer.dispose();
+            bloomBuffer.dispose();
+            blurBuffer.dispose();
+            sceneBuffer = null;
+            bloomBuffer = null;
+            blurBuffer = null;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        disposeBuffers();
+        crtShader.dispose();
+        brightShader.dispose();
+        blurShader.dispose();
+    }
+}
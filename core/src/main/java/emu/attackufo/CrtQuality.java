@@ -0,0 +1,44 @@
+package emu.attackufo;
+
+/**
+ * The quality levels of the CRT post-processing. Each level adds effects to
+ * the one before it, at the cost of more GPU time.
+ * 
+ * @author Lance Ewing
+ */
+public enum CrtQuality {
+
+    /**
+     * No post-processing. The VIC screen is drawn straight to the display.
+     */
+    OFF,
+
+    /**
+     * Scanlines and phosphor mask, in a single extra pass.
+     */
+    LOW,
+
+    /**
+     * As LOW, plus screen curvature.
+     */
+    MEDIUM,
+
+    /**
+     * As MEDIUM, plus bloom, which adds three passes at half resolution.
+     */
+    HIGH;
+
+    /**
+     * @return the next lower quality level, or this level if it is the lowest.
+     */
+    public CrtQuality lower() {
+        return (ordinal() > 0 ? values()[ordinal() - 1] : this);
+    }
+
+    /**
+     * @return the next higher quality level, or this level if it is the highest.
+     */
+    public CrtQuality higher() {
+        return (ordinal() < (values().length - 1) ? values()[ordinal() + 1] : this);
+    }
+}
@@ -0,0 +1,184 @@
+package emu.attackufo;
+
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Supports the DISPLAY_SYNC pacing mode, where the Machine is updated from
+ * within the render method, so that emulated frames are locked to the
+ * display's vsync. A frame is emulated every N vsyncs, where N is the whole
+ * number that brings the display's refresh rate closest to the Machine's frame
+ * rate. This is only possible if the result is close to the Machine's frame
+ * rate, e.g. an NTSC machine on a 60 Hz display, or a PAL machine on a 50 Hz or
+ * 100 Hz display.
+ *
+ * The emulation therefore runs slightly faster or slower than it should. To
+ * keep the sound continuous, the VIC's sample rate is scaled by the same
+ * amount, and then fine tuned by a fraction of a percent by a feedback loop on
+ * the estimated fill level of the audio device's buffers, which absorbs the
+ * difference between the display clock and the audio clock.
+ *
+ * @author Lance Ewing
+ */
+public class DisplaySyncPacer {
+
+    /**
+     * The maximum relative difference between the display driven frame rate and
+     * the Machine's frame rate for display sync to be possible.
+     */
+    private static final double MAX_FRAME_RATE_DEVIATION = 0.02;
+
+    /**
+     * The maximum relative adjustment that the feedback loop makes to the sample
+     * rate.
+     */
+    private static final double MAX_RATE_ADJUSTMENT = 0.005;
+
+    /**
+     * The relative adjustment made to the sample rate for each whole buffer's
+     * worth of fill error.
+     */
+    private static final double RATE_ADJUSTMENT_GAIN = 0.01;
+
+    /**
+     * The number of vsyncs per emulated frame.
+     */
+    private int vsyncsPerFrame;
+
+    /**
+     * Counts vsyncs, to know when the next frame is due.
+     */
+    private int vsyncCount;
+
+    /**
+     * The ratio of the display driven emulation speed to the Machine's true
+     * speed.
+     */
+    private double speedRatio;
+
+    /**
+     * The current sample rate ratio, including the feedback adjustment.
+     */
+    private volatile double sampleRateRatio;
+
+    // Estimation of the audio device's buffer fill level. The fill level is
+    // known at the reference time, and then assumed to drain at the sample rate.
+    private long fillReferenceTime;
+    private long fillReferenceSamplesWritten;
+    private long fillReferenceLevel;
+    private volatile long estimatedFill;
+
+    /**
+     * Configures the pacer for the given MachineType and display refresh rate.
+     *
+     * @param machineType The MachineType being emulated.
+     * @param refreshRate The display's refresh rate in Hz.
+     *
+     * @return true if the display refresh rate is close enough to a multiple of
+     *         the Machine's frame rate for display sync to be used.
+     */
+    public boolean configure(MachineType machineType, int refreshRate) {
+        if (refreshRate <= 0) {
+            return false;
+        }
+
+        // The true frame rate depends on the number of cycles per raster frame, which
+        // is four pixels per cycle across the whole raster.
+        int cyclesPerFrame = (machineType.getTotalScreenWidth() / 4) * machineType.getTotalScreenHeight();
+        double frameRate = ((double) machineType.getCyclesPerSecond()) / cyclesPerFrame;
+
+        vsyncsPerFrame = Math.max(1, (int) Math.round(refreshRate / frameRate));
+        speedRatio = (((double) refreshRate) / vsyncsPerFrame) / frameRate;
+        sampleRateRatio = speedRatio;
+        vsyncCount = 0;
+        fillReferenceTime = 0;
+
+        return (Math.abs(speedRatio - 1.0) <= MAX_FRAME_RATE_DEVIATION);
+    }
+
+    /**
+     * Invoked once per vsync to decide whether a frame should be emulated.
+     *
+     * @return true if a frame should be emulated for this vsync.
+     */
+    public boolean isFrameDue() {
+        boolean frameDue = (vsyncCount == 0);
+        vsyncCount = (vsyncCount + 1) % vsyncsPerFrame;
+        return frameDue;
+    }
+
+    /**
+     * Updates the estimate of the audio device's buffer fill level, and from
+     * that, the sample rate ratio that the VIC should use.
+     *
+     * @param samplesWritten The total number of samples written to the audio
+     *                       device.
+     * @param capacity       The capacity of the audio device's buffers, in
+     *                       samples.
+     * @param sampleRate     The audio device's sample rate.
+     *
+     * @return The ratio to apply to the VIC's cycles per sample.
+     */
+    public double updateSampleRateRatio(long samplesWritten, int capacity, int sampleRate) {
+        long now = TimeUtils.nanoTime();
+
+        if ((fillReferenceTime == 0) || (capacity <= 0)) {
+            // Assume the buffers are empty at the start.
+            fillReferenceTime = now;
+            fillReferenceSamplesWritten = samplesWritten;
+            fillReferenceLevel = 0;
+        }
+
+        long drained = ((now - fillReferenceTime) * sampleRate) / 1000000000L;
+        long fill = fillReferenceLevel + (samplesWritten - fillReferenceSamplesWritten) - drained;
+
+        if ((fill < 0) || (fill > capacity)) {
+            // Either the buffers have run dry, or writes will have blocked until there was
+            // space. Either way, the true level is now known, so the estimate restarts.
+            fill = Math.max(0, Math.min(capacity, fill));
+            fillReferenceTime = now;
+            fillReferenceSamplesWritten = samplesWritten;
+            fillReferenceLevel = fill;
+        }
+        estimatedFill = fill;
+
+        if (capacity > 0) {
+            // Aim for half full. More cycles per sample produce fewer samples, so the
+            // ratio rises when the buffers are too full.
+            double fillError = ((double) (fill - (capacity / 2))) / capacity;
+            double adjustment = Math.max(-MAX_RATE_ADJUSTMENT,
+                    Math.min(MAX_RATE_ADJUSTMENT, fillError * RATE_ADJUSTMENT_GAIN));
+            sampleRateRatio = speedRatio * (1.0 + adjustment);
+        }
+
+        return sampleRateRatio;
+    }
+
+    /**
+     * @return the number of vsyncs per emulated frame.
+     */
+    public int getVsyncsPerFrame() {
+        return vsyncsPerFrame;
+    }
+
+    /**
+     * @return the ratio of the display driven emulation speed to the Machine's
+     *         true speed.
+     */
+    public double getSpeedRatio() {
+        return speedRatio;
+    }
+
+    /**
+     * @return the current sample rate ratio, including the feedback adjustment.
+     */
+    public double getSampleRateRatio() {
+        return sampleRateRatio;
+    }
+
+    /**
+     * @return the estimated fill level of the audio device's buffers, in samples.
+     */
+    public long getEstimatedFill() {
+        return estimatedFill;
+    }
+}
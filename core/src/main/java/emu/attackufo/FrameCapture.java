@@ -0,0 +1,337 @@
+package emu.attackufo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.PixmapIO;
+
+/**
+ * Captures completed VIC frames to files, without holding up either the
+ * emulation thread or the UI thread. Captures are requested from any thread,
+ * and the emulation thread then copies the next completed frame in to one of a
+ * small pool of buffers and hands it to a background thread, which encodes and
+ * writes it. If no buffer is free, because the encoder has fallen behind, then
+ * the frame is dropped and counted rather than waited for.
+ * 
+ * @author Lance Ewing
+ */
+public class FrameCapture {
+
+    /**
+     * The file formats that frames can be captured in.
+     */
+    public enum Format {
+
+        /**
+         * A PNG image, in the VIC palette colours.
+         */
+        PNG,
+
+        /**
+         * The raw frame, i.e. one byte per pixel holding its 4-bit palette index,
+         * line by line from the top.
+         */
+        RAW
+    }
+
+    /**
+     * The maximum number of captured frames waiting to be encoded.
+     */
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * The maximum number of capture requests waiting for a frame.
+     */
+    private static final int MAX_REQUESTS = 16;
+
+    /**
+     * A request to capture one or more consecutive frames.
+     */
+    private static class CaptureRequest {
+        FileHandle file;
+        boolean directory;
+        Format format;
+        int frameCount;
+        int nextSequence;
+    }
+
+    /**
+     * A pooled copy of a frame, which is also the task that encodes it.
+     */
+    private class CaptureBuffer implements Runnable {
+        byte[] pixels;
+        int width;
+        int height;
+        CaptureRequest request;
+        int sequence;
+
+        @Override
+        public void run() {
+            try {
+                encode(this);
+                capturedCount++;
+            } catch (Exception e) {
+                failedCount++;
+                Gdx.app.error("FrameCapture", "Failed to write frame capture", e);
+            } finally {
+                request = null;
+                freeBuffers.offer(this);
+            }
+        }
+    }
+
+    /**
+     * Capture requests waiting for a frame.
+     */
+    private final ArrayBlockingQueue<CaptureRequest> requests;
+
+    /**
+     * The pool of buffers that aren't in use.
+     */
+    private final ArrayBlockingQueue<CaptureBuffer> freeBuffers;
+
+    /**
+     * Encodes and writes captured frames on a background thread.
+     */
+    private final ThreadPoolExecutor encoder;
+
+    /**
+     * The VIC palette as RGBA8888 colours.
+     */
+    private final int[] paletteRGBA;
+
+    // Used only by the encoder thread, and reused while the frame size is unchanged.
+    private Pixmap encodePixmap;
+    private PixmapIO.PNG pngEncoder;
+
+    // Metrics.
+    private volatile long capturedCount;
+    private volatile long droppedCount;
+    private volatile long failedCount;
+
+    /**
+     * Constructor for FrameCapture.
+     * 
+     * @param palette The VIC palette as RGB565 colours.
+     */
+    public FrameCapture(short[] palette) {
+        paletteRGBA = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            int rgb565 = palette[i] & 0xFFFF;
+            int red = ((rgb565 >> 11) & 0x1F) * 255 / 31;
+            int green = ((rgb565 >> 5) & 0x3F) * 255 / 63;
+            int blue = (rgb565 & 0x1F) * 255 / 31;
+            paletteRGBA[i] = (red << 24) | (green << 16) | (blue << 8) | 0xFF;
+        }
+
+        requests = new ArrayBlockingQueue<CaptureRequest>(MAX_REQUESTS);
+
+        // One buffer for each queue slot, plus the one being encoded.
+        freeBuffers = new ArrayBlockingQueue<CaptureBuffer>(QUEUE_CAPACITY + 1);
+        for (int i = 0; i < QUEUE_CAPACITY + 1; i++) {
+            freeBuffers.offer(new CaptureBuffer());
+        }
+
+        encoder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "FrameCapture");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Requests that the next completed frame is captured to the given file.
+     * 
+     * @param file   The file to write the frame to.
+     * @param format The Format to write the frame in.
+     * 
+     * @return true if the request was accepted, or false if too many requests
+     *         are already waiting.
+     */
+    public boolean requestScreenshot(FileHandle file, Format format) {
+        return offerRequest(file, false, format, 1);
+    }
+
+    /**
+     * Requests that the given number of consecutive frames are captured to the
+     * given directory. The files are named frame_00000.png, frame_00001.png, and
+     * so on, or with .raw for RAW files.
+     * 
+     * @param directory  The directory to write the frames to.
+     * @param format     The Format to write the frames in.
+     * @param frameCount The number of frames to capture.
+     * 
+     * @return true if the request was accepted, or false if too many requests
+     *         are already waiting.
+     */
+    public boolean requestFrames(FileHandle directory, Format format, int frameCount) {
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("frameCount must be at least 1");
+        }
+        return offerRequest(directory, true, format, frameCount);
+    }
+
+    /**
+     * Adds a capture request to the queue of requests waiting for a frame.
+     * 
+     * @param file       The file, or directory, to write the frames to.
+     * @param directory  true if the frames are written to files in the directory.
+     * @param format     The Format to write the frames in.
+     * @param frameCount The number of frames to capture.
+     * 
+     * @return true if the request was accepted, or false if too many requests
+     *         are already waiting.
+     */
+    private boolean offerRequest(FileHandle file, boolean directory, Format format, int frameCount) {
+        CaptureRequest request = new CaptureRequest();
+        request.file = file;
+        request.directory = directory;
+        request.format = format;
+        request.frameCount = frameCount;
+        return requests.offer(request);
+    }
+
+    /**
+     * Returns whether a capture has been requested. This is cheap, so can be
+     * called at the end of every frame.
+     * 
+     * @return true if a capture has been requested.
+     */
+    public boolean isPending() {
+        return !requests.isEmpty();
+    }
+
+    /**
+     * Invoked by the emulation thread when a frame has completed, to capture it
+     * if one has been requested. The pixels are copied, so the frame buffer can be
+     * reused as soon as this returns.
+     * 
+     * @param framePixels The frame's pixels, one palette index per byte.
+     * @param width       The width of the frame in pixels.
+     * @param height      The height of the frame in pixels.
+     */
+    public void frameCompleted(ByteBuffer framePixels, int width, int height) {
+        CaptureRequest request = requests.peek();
+        if (request == null) {
+            return;
+        }
+        int sequence = request.nextSequence++;
+        if (request.nextSequence >= request.frameCount) {
+            requests.poll();
+        }
+
+        CaptureBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            // The encoder has fallen behind.
+            droppedCount++;
+            return;
+        }
+
+        int size = width * height;
+        if ((buffer.pixels == null) || (buffer.pixels.length != size)) {
+            buffer.pixels = new byte[size];
+        }
+        // The frame buffer is owned by the emulation thread until it is published, so
+        // it is safe to move its position.
+        framePixels.position(0);
+        framePixels.get(buffer.pixels, 0, size);
+        framePixels.position(0);
+        buffer.width = width;
+        buffer.height = height;
+        buffer.request = request;
+        buffer.sequence = sequence;
+
+        try {
+            encoder.execute(buffer);
+        } catch (RejectedExecutionException e) {
+            buffer.request = null;
+            freeBuffers.offer(buffer);
+            droppedCount++;
+        }
+    }
+
+    /**
+     * Encodes and writes the given captured frame. This runs on the encoder
+     * thread.
+     * 
+     * @param buffer The CaptureBuffer holding the frame.
+     * 
+     * @throws IOException If the file could not be written.
+     */
+    private void encode(CaptureBuffer buffer) throws IOException {
+        CaptureRequest request = buffer.request;
+        FileHandle file = request.file;
+        if (request.directory) {
+            file = file.child(String.format("frame_%05d.%s", buffer.sequence,
+                    (request.format == Format.PNG ? "png" : "raw")));
+        }
+
+        if (request.format == Format.RAW) {
+            file.writeBytes(buffer.pixels, 0, buffer.width * buffer.height, false);
+            return;
+        }
+
+        if ((encodePixmap == null) || (encodePixmap.getWidth() != buffer.width)
+                || (encodePixmap.getHeight() != buffer.height)) {
+            if (encodePixmap != null) {
+                encodePixmap.dispose();
+            }
+            encodePixmap = new Pixmap(buffer.width, buffer.height, Pixmap.Format.RGBA8888);
+            encodePixmap.setBlending(Pixmap.Blending.None);
+        }
+        if (pngEncoder == null) {
+            pngEncoder = new PixmapIO.PNG(buffer.width * buffer.height * 4);
+            pngEncoder.setFlipY(false);
+        }
+
+        byte[] pixels = buffer.pixels;
+        for (int y = 0, i = 0; y < buffer.height; y++) {
+            for (int x = 0; x < buffer.width; x++, i++) {
+                encodePixmap.drawPixel(x, y, paletteRGBA[pixels[i] & 0x0F]);
+            }
+        }
+        pngEncoder.write(file, encodePixmap);
+    }
+
+    /**
+     * Stops the encoder thread once the frames already queued have been written.
+     * Requests that have not yet been captured are discarded.
+     */
+    public void shutdown() {
+        requests.clear();
+        encoder.shutdown();
+    }
+
+    /**
+     * @return the number of frames captured and written.
+     */
+    public long getCapturedCount() {
+        return capturedCount;
+    }
+
+    /**
+     * @return the number of frames dropped because the encoder had fallen behind.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of frames that could not be written.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+}
@@ -0,0 +1,172 @@
+package emu.attackufo;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Paces the MachineRunnable so that each frame ends at its deadline, without
+ * burning a whole CPU core while waiting. Most of the wait is spent parked, and
+ * only the last short stretch before the deadline is spent spinning, since a
+ * parked thread can wake up late. How late it wakes up is measured, and the
+ * spin margin adapts to it.
+ *
+ * Deadlines are absolute, i.e. each deadline is the previous deadline plus the
+ * frame duration, rather than the wake up time plus the frame duration, so that
+ * wake up errors do not accumulate into drift. If the Machine falls too far
+ * behind, e.g. because the thread was stalled, then the pacer resyncs to the
+ * current time rather than trying to catch up with a burst of frames.
+ *
+ * @author Lance Ewing
+ */
+public class FramePacer {
+
+    /**
+     * The minimum time to spin before a deadline.
+     */
+    private static final long MIN_SPIN_NANOS = 200000L;
+
+    /**
+     * The maximum time to spin before a deadline.
+     */
+    private static final long MAX_SPIN_NANOS = 4000000L;
+
+    /**
+     * If the pacer is behind its deadline by more than this many frames, it will
+     * resync to the current time.
+     */
+    private static final int STALL_RESYNC_FRAMES = 5;
+
+    /**
+     * The averages are exponential moving averages, where each new measurement
+     * contributes 1/(2^AVERAGE_SHIFT) of the new value.
+     */
+    private static final int AVERAGE_SHIFT = 4;
+
+    /**
+     * The absolute time at which the current frame should end.
+     */
+    private long deadline;
+
+    /**
+     * The moving average of how much later than requested the thread wakes up
+     * from being parked.
+     */
+    private long avgParkOvershoot;
+
+    /**
+     * The current time to spin before each deadline.
+     */
+    private long spinNanos = 1000000L;
+
+    // Metrics. These are read by other threads, so are volatile.
+    private volatile long avgJitter;
+    private volatile long maxJitter;
+    private volatile long lateFrames;
+    private volatile long resyncs;
+
+    /**
+     * Resets the pacer so that the current frame, which is starting now, ends one
+     * frame duration from now. The maximum jitter is also cleared, since the waits
+     * before the reset were paced against a different timeline.
+     *
+     * @param nanosPerFrame The duration of the current frame in nanoseconds.
+     */
+    public void reset(long nanosPerFrame) {
+        deadline = TimeUtils.nanoTime() + nanosPerFrame;
+        maxJitter = 0;
+    }
+
+    /**
+     * Waits until the deadline of the current frame, and then moves the deadline
+     * on to the end of the next frame.
+     *
+     * @param nanosPerFrame The duration of the next frame in nanoseconds.
+     */
+    public void waitForDeadline(long nanosPerFrame) {
+        long now = TimeUtils.nanoTime();
+        long remaining = deadline - now;
+
+        if (remaining > 0) {
+            // Park for as much of the wait as we can trust the parking to be accurate.
+            long parkNanos = remaining - spinNanos;
+            if (parkNanos > 0) {
+                long parkEnd = now + parkNanos;
+                LockSupport.parkNanos(parkNanos);
+                now = TimeUtils.nanoTime();
+
+                long overshoot = Math.max(0L, now - parkEnd);
+                avgParkOvershoot += ((overshoot - avgParkOvershoot) >> AVERAGE_SHIFT);
+                spinNanos = Math.min(MAX_SPIN_NANOS, Math.max(MIN_SPIN_NANOS, avgParkOvershoot * 2));
+            }
+
+            // Spin for the rest.
+            while ((now = TimeUtils.nanoTime()) - deadline < 0L) {
+                Thread.yield();
+            }
+
+            long jitter = now - deadline;
+            avgJitter += ((jitter - avgJitter) >> AVERAGE_SHIFT);
+            if (jitter > maxJitter) {
+                maxJitter = jitter;
+            }
+
+        } else {
+            lateFrames++;
+
+            if (-remaining > (nanosPerFrame * STALL_RESYNC_FRAMES)) {
+                // Too far behind to catch up, so start again from now.
+                deadline = now;
+                resyncs++;
+            }
+        }
+
+        deadline += nanosPerFrame;
+    }
+
+    /**
+     * Gets the absolute time at which the current frame should end.
+     *
+     * @return The absolute time at which the current frame should end.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return the average number of nanoseconds past the deadline that the waits
+     *         end.
+     */
+    public long getAvgJitter() {
+        return avgJitter;
+    }
+
+    /**
+     * @return the maximum number of nanoseconds past the deadline that a wait has
+     *         ended.
+     */
+    public long getMaxJitter() {
+        return maxJitter;
+    }
+
+    /**
+     * @return the number of frames that ended after their deadline had passed.
+     */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    /**
+     * @return the number of times that the pacer has resynced after a stall.
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * @return the current time spent spinning before each deadline.
+     */
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+}
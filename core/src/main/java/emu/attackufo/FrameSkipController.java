@@ -0,0 +1,200 @@
+package emu.attackufo;
+
+/**
+ * Decides when the MachineRunnable should skip the rendering of a VIC frame, so
+ * that slower devices can keep up with real time. It watches the time taken to
+ * update the Machine for each rendered frame against the time available per
+ * frame. Skipping is switched on when the average update time rises above a high
+ * water mark, and only switched off again when it falls below a lower low water
+ * mark, so that it doesn't flip flop around a single threshold. While switched
+ * on, a frame is skipped only if rendering it is predicted to miss the frame's
+ * deadline, and never more than a maximum number of frames in a row.
+ *
+ * @author Lance Ewing
+ */
+public class FrameSkipController {
+
+    /**
+     * The default percentage of the frame time that the average update time must
+     * rise above for frame skipping to switch on.
+     */
+    private static final int DEFAULT_HIGH_WATER_PERCENT = 90;
+
+    /**
+     * The default percentage of the frame time that the average update time must
+     * fall below for frame skipping to switch off again.
+     */
+    private static final int DEFAULT_LOW_WATER_PERCENT = 70;
+
+    /**
+     * The default maximum number of frames that can be skipped in a row.
+     */
+    private static final int DEFAULT_MAX_CONSECUTIVE_SKIPS = 3;
+
+    /**
+     * The average is an exponential moving average, where each new measurement
+     * contributes 1/(2^AVERAGE_SHIFT) of the new value.
+     */
+    private static final int AVERAGE_SHIFT = 3;
+
+    /**
+     * The number of nanoseconds available for each frame.
+     */
+    private long nanosPerFrame;
+
+    /**
+     * The average update time above which frame skipping switches on.
+     */
+    private long highWaterNanos;
+
+    /**
+     * The average update time below which frame skipping switches off.
+     */
+    private long lowWaterNanos;
+
+    /**
+     * The maximum number of frames that can be skipped in a row.
+     */
+    private int maxConsecutiveSkips;
+
+    /**
+     * The moving average of the update time of rendered frames.
+     */
+    private long avgRenderedUpdateTime;
+
+    /**
+     * Whether frame skipping is currently switched on.
+     */
+    private boolean skipping;
+
+    /**
+     * The number of frames that have been skipped in a row, up to the current
+     * frame.
+     */
+    private int consecutiveSkips;
+
+    // Metrics. These are read by other threads, so are volatile.
+    private volatile long totalFrames;
+    private volatile long skippedFrames;
+    private volatile long activations;
+
+    /**
+     * Constructor for FrameSkipController.
+     */
+    public FrameSkipController() {
+        this.maxConsecutiveSkips = DEFAULT_MAX_CONSECUTIVE_SKIPS;
+        reset(1000000000 / 50);
+    }
+
+    /**
+     * Resets the controller for the given frame duration. This is intended to be
+     * called whenever the MachineRunnable resets its timing, e.g. after a pause.
+     * The metrics are not reset.
+     *
+     * @param nanosPerFrame The number of nanoseconds available for each frame.
+     */
+    public void reset(long nanosPerFrame) {
+        this.nanosPerFrame = nanosPerFrame;
+        this.highWaterNanos = (nanosPerFrame * DEFAULT_HIGH_WATER_PERCENT) / 100;
+        this.lowWaterNanos = (nanosPerFrame * DEFAULT_LOW_WATER_PERCENT) / 100;
+        this.avgRenderedUpdateTime = 0;
+        this.skipping = false;
+        this.consecutiveSkips = 0;
+    }
+
+    /**
+     * Decides whether the rendering of the next frame should be skipped.
+     *
+     * @param nanosUntilDeadline The number of nanoseconds until the next frame
+     *                           should have been completed. This is negative if
+     *                           the deadline has already passed.
+     *
+     * @return true if the next frame should be emulated without rendering.
+     */
+    public boolean shouldSkip(long nanosUntilDeadline) {
+        return (skipping && (consecutiveSkips < maxConsecutiveSkips)
+                && (avgRenderedUpdateTime > nanosUntilDeadline));
+    }
+
+    /**
+     * Informs the controller of how long the last frame update took.
+     *
+     * @param updateDuration The number of nanoseconds that the update took.
+     * @param skipped        true if the rendering of the frame was skipped.
+     */
+    public void frameUpdated(long updateDuration, boolean skipped) {
+        totalFrames++;
+
+        if (skipped) {
+            consecutiveSkips++;
+            skippedFrames++;
+            return;
+        }
+
+        consecutiveSkips = 0;
+
+        if (avgRenderedUpdateTime == 0) {
+            avgRenderedUpdateTime = updateDuration;
+        } else {
+            avgRenderedUpdateTime += ((updateDuration - avgRenderedUpdateTime) >> AVERAGE_SHIFT);
+        }
+
+        if (skipping) {
+            if (avgRenderedUpdateTime < lowWaterNanos) {
+                skipping = false;
+            }
+        } else if (avgRenderedUpdateTime > highWaterNanos) {
+            skipping = true;
+            activations++;
+        }
+    }
+
+    /**
+     * Sets the maximum number of frames that can be skipped in a row.
+     *
+     * @param maxConsecutiveSkips The maximum number of frames to skip in a row.
+     */
+    public void setMaxConsecutiveSkips(int maxConsecutiveSkips) {
+        if (maxConsecutiveSkips < 0) {
+            throw new IllegalArgumentException("Max consecutive skips must not be negative: " + maxConsecutiveSkips);
+        }
+        this.maxConsecutiveSkips = maxConsecutiveSkips;
+    }
+
+    /**
+     * Returns whether frame skipping is currently switched on.
+     *
+     * @return true if frame skipping is switched on; otherwise false.
+     */
+    public boolean isSkipping() {
+        return skipping;
+    }
+
+    /**
+     * @return the total number of frames that the controller has seen.
+     */
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * @return the number of frames whose rendering was skipped.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return the number of times that frame skipping has switched on.
+     */
+    public long getActivations() {
+        return activations;
+    }
+
+    /**
+     * @return the nanosPerFrame
+     */
+    public long getNanosPerFrame() {
+        return nanosPerFrame;
+    }
+}
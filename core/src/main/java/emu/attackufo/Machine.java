@@ -1,9 +1,16 @@
 package emu.attackufo;
 
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.TimeUtils;
+
 import emu.attackufo.cpu.Cpu6502;
 import emu.attackufo.io.Joystick;
 import emu.attackufo.io.Pia;
 import emu.attackufo.memory.Memory;
+import emu.attackufo.sound.AudioOutput;
+import emu.attackufo.sound.VicSound;
+import emu.attackufo.video.Frame;
+import emu.attackufo.video.RenderMode;
 import emu.attackufo.video.Vic;
 
 /**
@@ -24,6 +31,27 @@ public class Machine {
 
     private boolean paused = true;
 
+    /**
+     * Captures VIC frames to files when requested.
+     */
+    private FrameCapture frameCapture;
+
+    /**
+     * Whether the VIC only stores the pixels within the visible window.
+     */
+    private boolean visibleWindowOnly = true;
+
+    /**
+     * How the VIC renders the pixels of each Frame.
+     */
+    private RenderMode renderMode = RenderMode.RASTER;
+
+    // The sound output settings, which are kept here so that they carry over when
+    // the Machine is initialised again.
+    private int sampleRate = VicSound.DEFAULT_SAMPLE_RATE;
+    private int audioBufferDepth = AudioOutput.DEFAULT_BUFFER_DEPTH;
+    private boolean autoAudioBufferDepth = true;
+
     private MachineType machineType;
 
     // These control what part of the generate pixel data is rendered to the screen.
@@ -34,6 +62,12 @@ public class Machine {
     private int screenWidth;
     private int screenHeight;
 
+    /**
+     * The number of frames whose rendering has been skipped. This is written by
+     * the emulating thread, and read by the UI thread.
+     */
+    private volatile long skippedFrameCount;
+
     /**
      * Constructor for Machine.
      */
@@ -51,8 +85,24 @@ public class Machine {
         // Create the microprocessor.
         cpu = new Cpu6502();
 
-        // Create the VIC chip and configure it as per the current TV type.
-        vic = new Vic(machineType);
+        // Create the VIC chip and configure it as per the current TV type. The old
+        // VIC's sound has to release its audio device first.
+        if (vic != null) {
+            vic.getSound().dispose();
+        }
+        vic = new Vic(machineType, visibleWindowOnly);
+        vic.setRenderMode(renderMode);
+        vic.getSound().setSampleRate(sampleRate);
+        vic.getSound().setBufferDepth(audioBufferDepth);
+        vic.getSound().setAutoBufferDepth(autoAudioBufferDepth);
+
+        // Frame captures are encoded on a background thread, which is replaced along
+        // with the VIC.
+        if (frameCapture != null) {
+            frameCapture.shutdown();
+        }
+        frameCapture = new FrameCapture(Vic.getPalette());
+        vic.setFrameCapture(frameCapture);
 
         // Create the peripherals.
         joystick = new Joystick();
@@ -65,12 +115,12 @@ public class Machine {
         memory = new Memory(cpu, vic, pia, machineType);
 
         // Set up the screen dimensions based on the VIC chip settings. Aspect ratio of
-        // 4:3.
+        // 4:3. If the VIC only stores the visible window, then that is the whole frame.
         screenWidth = (machineType.getVisibleScreenHeight() / 3) * 4;
         screenHeight = machineType.getVisibleScreenHeight();
-        screenLeft = machineType.getHorizontalOffset();
+        screenLeft = (visibleWindowOnly ? 0 : machineType.getHorizontalOffset());
         screenRight = screenLeft + machineType.getVisibleScreenWidth();
-        screenTop = machineType.getVerticalOffset();
+        screenTop = (visibleWindowOnly ? 0 : machineType.getVerticalOffset());
         screenBottom = screenTop + machineType.getVisibleScreenHeight();
 
         cpu.reset();
@@ -82,8 +132,13 @@ public class Machine {
      * @param skipRender true if the VIC chip emulation should skip rendering.
      */
     public void update(boolean skipRender) {
+        // Key events are applied at the start of the frame, on the emulating thread,
+        // so that they always land on a frame boundary.
+        joystick.applyInputEvents(TimeUtils.nanoTime());
+
         boolean frameComplete = false;
         if (skipRender) {
+            skippedFrameCount++;
             do {
                 frameComplete |= vic.emulateSkipCycle();
                 cpu.emulateCycle();
@@ -98,6 +153,16 @@ public class Machine {
         }
     }
 
+    /**
+     * Gets the number of frames whose rendering has been skipped, e.g. by the
+     * adaptive frame skipping or turbo mode.
+     * 
+     * @return The number of skipped frames.
+     */
+    public long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
     /**
      * @return the screenLeft
      */
@@ -141,13 +206,138 @@ public class Machine {
     }
 
     /**
-     * Gets the pixels for the current frame from the VIC chip.
+     * Sets whether the VIC only stores the pixels within the visible window, rather
+     * than the whole raster. This takes effect the next time the Machine is
+     * initialised.
+     * 
+     * @param visibleWindowOnly true to only store the pixels in the visible window.
+     */
+    public void setVisibleWindowOnly(boolean visibleWindowOnly) {
+        this.visibleWindowOnly = visibleWindowOnly;
+    }
+
+    /**
+     * Returns whether the VIC only stores the pixels within the visible window.
+     * 
+     * @return true if only the pixels in the visible window are stored.
+     */
+    public boolean isVisibleWindowOnly() {
+        return visibleWindowOnly;
+    }
+
+    /**
+     * Sets how the VIC renders the pixels of each Frame. This takes effect from
+     * the next frame.
+     * 
+     * @param renderMode The RenderMode to use.
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+        if (vic != null) {
+            vic.setRenderMode(renderMode);
+        }
+    }
+
+    /**
+     * @return the renderMode
+     */
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Sets the sample rate that the sound is output at. This takes effect within
+     * the next few milliseconds, when the audio device is reopened at the new
+     * rate.
+     * 
+     * @param sampleRate The sample rate in Hz, normally 44100 or 48000.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (vic != null) {
+            vic.getSound().setSampleRate(sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return the sampleRate
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the number of samples that the sound output builds up before the
+     * audio device starts playing. Deeper buffers are less likely to underrun,
+     * but add latency. In the automatic mode, this is where the search for the
+     * smallest depth that stays free of underruns starts from.
+     * 
+     * @param audioBufferDepth The buffer depth in samples.
+     */
+    public void setAudioBufferDepth(int audioBufferDepth) {
+        this.audioBufferDepth = audioBufferDepth;
+        if (vic != null) {
+            vic.getSound().setBufferDepth(audioBufferDepth);
+        }
+    }
+
+    /**
+     * Gets the number of samples that the sound output builds up before the audio
+     * device starts playing. In the automatic mode, this is the depth currently
+     * chosen.
+     * 
+     * @return The buffer depth in samples.
+     */
+    public int getAudioBufferDepth() {
+        return (vic != null ? vic.getSound().getBufferDepth() : audioBufferDepth);
+    }
+
+    /**
+     * Sets whether the sound output's buffer depth is chosen automatically, i.e.
+     * the smallest depth that stays free of underruns on this host.
+     * 
+     * @param autoAudioBufferDepth true to choose the buffer depth automatically.
+     */
+    public void setAutoAudioBufferDepth(boolean autoAudioBufferDepth) {
+        this.autoAudioBufferDepth = autoAudioBufferDepth;
+        if (vic != null) {
+            vic.getSound().setAutoBufferDepth(autoAudioBufferDepth);
+        }
+    }
+
+    /**
+     * @return the autoAudioBufferDepth
+     */
+    public boolean isAutoAudioBufferDepth() {
+        return autoAudioBufferDepth;
+    }
+
+    /**
+     * Gets the width of the frames generated by the VIC chip.
+     * 
+     * @return The width of the frames in pixels.
+     */
+    public int getFrameWidth() {
+        return vic.getFrameWidth();
+    }
+
+    /**
+     * Gets the height of the frames generated by the VIC chip.
+     * 
+     * @return The height of the frames in pixels.
+     */
+    public int getFrameHeight() {
+        return vic.getFrameHeight();
+    }
+
+    /**
+     * Gets the current frame from the VIC chip. Each pixel is a 4-bit index into
+     * the VIC palette.
      * 
-     * @return The pixels for the current frame. Returns null if there isn't one
-     *         that is ready.
+     * @return The current frame. Returns null if there isn't one that is ready.
      */
-    public short[] getFramePixels() {
-        return vic.getFramePixels();
+    public Frame getFrame() {
+        return vic.getFrame();
     }
 
     /**
@@ -169,6 +359,81 @@ public class Machine {
      */
     public void setPaused(boolean paused) {
         this.paused = paused;
+
+        // Key events queued while paused are stale, so the joystick starts again from
+        // the keys that are down now.
+        if (!paused && (joystick != null)) {
+            joystick.resync();
+        }
+    }
+
+    /**
+     * Mutes and unmutes the sound output of the Machine.
+     * 
+     * @param soundPaused true to mute the sound, false to unmute it.
+     */
+    public void setSoundPaused(boolean soundPaused) {
+        vic.getSound().setSoundPaused(soundPaused);
+    }
+
+    /**
+     * Returns whether sound is currently being output to an audio device, i.e. an
+     * audio device is available and sound is not muted.
+     * 
+     * @return true if sound is being output to an audio device; otherwise false.
+     */
+    public boolean isSoundOutputActive() {
+        return vic.getSound().isSoundOutputActive();
+    }
+
+    /**
+     * Waits until the sound output has room for more samples. This is used to pace
+     * the Machine by the audio device's sample clock.
+     */
+    public void waitForSoundOutput() {
+        vic.getSound().waitForAudioOutput();
+    }
+
+    /**
+     * Starts recording the sound output to a 16-bit PCM WAV file. The recording
+     * continues while muted, and stops if the sample rate is changed.
+     * 
+     * @param file The file to record to. If it exists, it is replaced.
+     */
+    public void startSoundRecording(FileHandle file) {
+        vic.getSound().startRecording(file);
+    }
+
+    /**
+     * Stops recording the sound output, which finishes off the WAV file.
+     */
+    public void stopSoundRecording() {
+        vic.getSound().stopRecording();
+    }
+
+    /**
+     * Starts logging the writes to the sound registers, which is a much smaller
+     * record of the sound than a WAV file. The log can be rendered to a WAV file
+     * afterwards, at any sample rate, with the SoundLogRenderer.
+     */
+    public void startSoundLog() {
+        vic.getSound().startRegisterLog();
+    }
+
+    /**
+     * Stops logging the writes to the sound registers, and writes the log out.
+     *
+     * @param file The file to write the log to. If it exists, it is replaced.
+     *
+     * @return true if a log was written; false if a log hadn't started.
+     */
+    public boolean stopSoundLog(FileHandle file) {
+        byte[] log = vic.getSound().stopRegisterLog();
+        if (log == null) {
+            return false;
+        }
+        file.writeBytes(log, false);
+        return true;
     }
 
     /**
@@ -189,6 +454,37 @@ public class Machine {
         return machineType;
     }
 
+    /**
+     * Gets the VIC chip of this Machine.
+     * 
+     * @return The VIC chip of this Machine.
+     */
+    public Vic getVic() {
+        return vic;
+    }
+
+    /**
+     * Gets the FrameCapture of this Machine, through which completed VIC frames
+     * can be captured to files without holding up the emulation.
+     * 
+     * @return The FrameCapture of this Machine.
+     */
+    public FrameCapture getFrameCapture() {
+        return frameCapture;
+    }
+
+    /**
+     * Stops any background threads used by the Machine.
+     */
+    public void dispose() {
+        if (frameCapture != null) {
+            frameCapture.shutdown();
+        }
+        if (vic != null) {
+            vic.getSound().dispose();
+        }
+    }
+
     /**
      * Gets the Joystick of this Machine.
      * 
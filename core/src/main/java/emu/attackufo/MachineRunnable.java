@@ -1,5 +1,6 @@
 package emu.attackufo;
 
+import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.utils.TimeUtils;
 
 /**
@@ -40,6 +41,17 @@ import com.badlogic.gdx.utils.TimeUtils;
  */
 public class MachineRunnable implements Runnable {
 
+    /**
+     * Turbo speed factor that means run as fast as the host allows.
+     */
+    public static final int TURBO_UNLIMITED = 0;
+
+    /**
+     * When running with an unlimited turbo speed factor, only every this many
+     * frames is rendered.
+     */
+    private static final int UNLIMITED_TURBO_RENDER_INTERVAL = 16;
+
     /**
      * The Machine that this Runnable will be running.
      */
@@ -48,6 +60,48 @@ public class MachineRunnable implements Runnable {
     private boolean exit = false;
     private boolean paused = true;
 
+    /**
+     * Whether turbo (fast forward) mode is currently on.
+     */
+    private volatile boolean turbo;
+
+    /**
+     * The speed multiplier to use when in turbo mode, or TURBO_UNLIMITED.
+     */
+    private volatile int turboSpeedFactor = 4;
+
+    /**
+     * The number of frames emulated during the last full second.
+     */
+    private volatile int emulatedFramesPerSecond;
+
+    /**
+     * Whether adaptive frame skipping is enabled.
+     */
+    private volatile boolean adaptiveFrameSkip;
+
+    /**
+     * Decides when to skip rendering frames if adaptive frame skipping is enabled.
+     */
+    private FrameSkipController frameSkipController;
+
+    /**
+     * Paces the Machine updates so that each frame ends at the right time.
+     */
+    private FramePacer framePacer;
+
+    /**
+     * How the Machine updates are paced, e.g. by wall clock or by audio clock.
+     */
+    private volatile PacingMode pacingMode = PacingMode.WALL_CLOCK;
+
+    /**
+     * Whether this MachineRunnable is currently waiting rather than updating the
+     * Machine. When in DISPLAY_SYNC pacing mode, the Machine can only be updated
+     * from elsewhere once this is true.
+     */
+    private volatile boolean idle;
+
     /**
      * Constructor for MachineRunnable.
      * 
@@ -55,6 +109,8 @@ public class MachineRunnable implements Runnable {
      */
     public MachineRunnable(Machine machine) {
         this.machine = machine;
+        this.frameSkipController = new FrameSkipController();
+        this.framePacer = new FramePacer();
     }
 
     /**
@@ -65,28 +121,37 @@ public class MachineRunnable implements Runnable {
         long frameStart = TimeUtils.nanoTime();
         long avgUpdateTime = 0;
         long frameCount = 0;
-        long lastTime = TimeUtils.nanoTime();
+        int framesThisSecond = 0;
 
         boolean skipRender = false;
+        boolean turboActive = false;
+        int turboFrameCount = 0;
 
         while (true) {
-            if (paused) {
+            if (paused || (pacingMode == PacingMode.DISPLAY_SYNC)) {
                 synchronized (this) {
                     try {
-                        while (paused) {
+                        // In DISPLAY_SYNC mode, the Machine is updated by the render method
+                        // instead, so this thread waits for as long as that is the case.
+                        idle = true;
+                        while ((paused || (pacingMode == PacingMode.DISPLAY_SYNC)) && !exit) {
                             wait();
                         }
                     } catch (InterruptedException e) {
                         // Gdx.app.log("MachineRunnable", e.getMessage(), e);
                     }
+                    idle = false;
 
                     if (!exit) {
                         // Machine type may have changed while we were paused, and an unknown amount of
                         // time will have passed. So reset all timing and counts.
                         nanosPerFrame = (1000000000 / machine.getMachineType().getFramesPerSecond());
-                        lastTime = frameStart = TimeUtils.nanoTime();
+                        frameStart = TimeUtils.nanoTime();
+                        framePacer.reset(nanosPerFrame);
                         avgUpdateTime = 0;
                         frameCount = 0;
+                        framesThisSecond = 0;
+                        frameSkipController.reset(nanosPerFrame);
                     }
                 }
             }
@@ -96,33 +161,76 @@ public class MachineRunnable implements Runnable {
 
             long time = TimeUtils.nanoTime();
 
-            // TODO: Input events should ideally be processed here, if we can figure out how
-            // to do it outside of the UI thread that is.
+            // Check whether turbo mode has been switched on or off since the last frame.
+            int speedFactor = turboSpeedFactor;
+            if (turbo != turboActive) {
+                turboActive = turbo;
+                turboFrameCount = 0;
+
+                // Sound is muted in turbo mode. This also stops the audio output from
+                // holding the emulation back to normal speed in AUDIO_CLOCK mode.
+                machine.setSoundPaused(turboActive);
+
+                // Start pacing again from now, so that leaving turbo mode doesn't result in
+                // a burst of catch up frames, or a stall while real time catches up.
+                framePacer.reset((turboActive && (speedFactor != TURBO_UNLIMITED)) ? nanosPerFrame / speedFactor : nanosPerFrame);
+            }
+
+            if (turboActive) {
+                // Only every k-th frame is rendered when in turbo mode.
+                int renderInterval = (speedFactor == TURBO_UNLIMITED ? UNLIMITED_TURBO_RENDER_INTERVAL : speedFactor);
+                skipRender = ((++turboFrameCount % renderInterval) != 0);
+            } else if (adaptiveFrameSkip) {
+                // Skip rendering if the frame is predicted to miss its deadline.
+                skipRender = frameSkipController.shouldSkip(framePacer.getDeadline() - time);
+            } else {
+                skipRender = false;
+            }
 
             long updateStartTime = TimeUtils.nanoTime();
 
             // Updates the Machine's state for the time that has passed.
             machine.update(skipRender);
+            framesThisSecond++;
 
-            // TODO: Experimental solution to skip VIC frames on slower devices.
-            // skipRender = !skipRender;
+            // Rendering is event driven, so the UI thread is told when there is a new
+            // frame to draw.
+            if (!skipRender) {
+                Gdx.graphics.requestRendering();
+            }
 
             long updateEndTime = TimeUtils.nanoTime();
             long updateDuration = updateEndTime - updateStartTime;
+            if (adaptiveFrameSkip && !turboActive) {
+                frameSkipController.frameUpdated(updateDuration, skipRender);
+            }
             if (frameCount++ == 0) {
                 avgUpdateTime = updateDuration;
             } else {
                 avgUpdateTime = ((avgUpdateTime * frameCount) + updateDuration) / (frameCount + 1);
             }
 
-            // Throttle at expected FPS.
-            while (TimeUtils.nanoTime() - lastTime <= 0L) {
-                Thread.yield();
+            if (!turboActive) {
+                if ((pacingMode == PacingMode.AUDIO_CLOCK) && machine.isSoundOutputActive()) {
+                    // Wait for the audio device to play enough of the buffered samples, which
+                    // holds the update back to the audio device's sample clock. The pacer is
+                    // reset so that it takes over smoothly if sound stops.
+                    machine.waitForSoundOutput();
+                    framePacer.reset(nanosPerFrame);
+                } else {
+                    // Throttle at expected FPS.
+                    framePacer.waitForDeadline(nanosPerFrame);
+                }
+
+            } else if (speedFactor != TURBO_UNLIMITED) {
+                // Throttle at the expected FPS multiplied by the turbo speed factor.
+                framePacer.waitForDeadline(nanosPerFrame / speedFactor);
             }
-            lastTime += nanosPerFrame;
 
             if (time - frameStart > 1000000000l) {
                 frameStart = time;
+                emulatedFramesPerSecond = framesThisSecond;
+                framesThisSecond = 0;
             }
         }
     }
@@ -146,12 +254,138 @@ public class MachineRunnable implements Runnable {
         }
     }
 
+    /**
+     * Switches turbo (fast forward) mode on or off. When on, the Machine runs at
+     * the turbo speed factor, only every k-th frame is rendered, and sound is
+     * muted. Normal frame pacing resumes from the current time when switched off.
+     * 
+     * @param turbo true to switch turbo mode on; false to switch it off.
+     */
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+    }
+
+    /**
+     * Returns whether turbo mode is on or not.
+     * 
+     * @return true if turbo mode is on; otherwise false.
+     */
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    /**
+     * Sets the speed multiplier to use when in turbo mode. This is also the
+     * interval at which frames are rendered while in turbo mode.
+     * 
+     * @param turboSpeedFactor The speed multiplier, or TURBO_UNLIMITED to run as
+     *                         fast as the host allows.
+     */
+    public void setTurboSpeedFactor(int turboSpeedFactor) {
+        if (turboSpeedFactor < 0) {
+            throw new IllegalArgumentException("Turbo speed factor must not be negative: " + turboSpeedFactor);
+        }
+        this.turboSpeedFactor = turboSpeedFactor;
+    }
+
+    /**
+     * Gets the speed multiplier used when in turbo mode.
+     * 
+     * @return The speed multiplier, or TURBO_UNLIMITED.
+     */
+    public int getTurboSpeedFactor() {
+        return turboSpeedFactor;
+    }
+
+    /**
+     * Enables or disables adaptive frame skipping. When enabled, the rendering of
+     * frames is skipped if the Machine update is falling behind real time.
+     * 
+     * @param adaptiveFrameSkip true to enable adaptive frame skipping.
+     */
+    public void setAdaptiveFrameSkip(boolean adaptiveFrameSkip) {
+        this.adaptiveFrameSkip = adaptiveFrameSkip;
+    }
+
+    /**
+     * Returns whether adaptive frame skipping is enabled.
+     * 
+     * @return true if adaptive frame skipping is enabled; otherwise false.
+     */
+    public boolean isAdaptiveFrameSkip() {
+        return adaptiveFrameSkip;
+    }
+
+    /**
+     * Gets the FrameSkipController, which holds the adaptive frame skip metrics.
+     * 
+     * @return The FrameSkipController.
+     */
+    public FrameSkipController getFrameSkipController() {
+        return frameSkipController;
+    }
+
+    /**
+     * Sets how the Machine updates are paced.
+     * 
+     * @param pacingMode The PacingMode to use.
+     */
+    public void setPacingMode(PacingMode pacingMode) {
+        synchronized (this) {
+            this.pacingMode = pacingMode;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Returns whether this MachineRunnable is currently waiting rather than
+     * updating the Machine.
+     * 
+     * @return true if this MachineRunnable is not updating the Machine.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Gets how the Machine updates are paced.
+     * 
+     * @return The current PacingMode.
+     */
+    public PacingMode getPacingMode() {
+        return pacingMode;
+    }
+
+    /**
+     * Gets the FramePacer, which holds the frame pacing jitter metrics.
+     * 
+     * @return The FramePacer.
+     */
+    public FramePacer getFramePacer() {
+        return framePacer;
+    }
+
+    /**
+     * Gets the number of frames that were emulated during the last full second.
+     * When in unlimited turbo mode, this is the raw emulation throughput.
+     * 
+     * @return The number of frames emulated during the last full second.
+     */
+    public int getEmulatedFramesPerSecond() {
+        return emulatedFramesPerSecond;
+    }
+
     /**
      * Stops the MachineRunnable.
      */
     public void stop() {
         exit = true;
-        if (paused)
+        if (paused) {
             resume();
+        } else {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
     }
 }
@@ -1,10 +1,13 @@
 package emu.attackufo;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Screen;
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
@@ -12,14 +15,19 @@ import com.badlogic.gdx.graphics.OrthographicCamera;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.badlogic.gdx.utils.TimeUtils;
 import com.badlogic.gdx.utils.viewport.ExtendViewport;
 import com.badlogic.gdx.utils.viewport.Viewport;
 
+import emu.attackufo.sound.VicSound;
 import emu.attackufo.ui.ConfirmHandler;
 import emu.attackufo.ui.MachineInputProcessor;
 import emu.attackufo.ui.ViewportManager;
+import emu.attackufo.video.Frame;
+import emu.attackufo.video.Vic;
 
 /**
  * The main screen in the Attack UFO emulator, i.e. the one that shows the video
@@ -44,6 +52,18 @@ public class MachineScreen implements Screen {
      */
     private MachineRunnable machineRunnable;
 
+    /**
+     * Decides when to update the Machine when in DISPLAY_SYNC pacing mode.
+     */
+    private DisplaySyncPacer displaySyncPacer;
+
+    /**
+     * The PacingMode that was last requested. This can differ from the
+     * MachineRunnable's PacingMode, since DISPLAY_SYNC falls back to WALL_CLOCK
+     * when the display's refresh rate doesn't suit the MachineType.
+     */
+    private PacingMode requestedPacingMode = PacingMode.WALL_CLOCK;
+
     /**
      * The InputProcessor for the MachineScreen. Handles the key and touch input.
      */
@@ -54,20 +74,74 @@ public class MachineScreen implements Screen {
      */
     private SpriteBatch batch;
 
+    /**
+     * Shader that converts the VIC's palette indexes into colours.
+     */
+    private ShaderProgram paletteShader;
+
+    /**
+     * Uploads Frames through pixel buffer objects when GL 3 is available. This is
+     * null when Frames are uploaded directly from their buffers.
+     */
+    private PixelBufferUploader pixelBufferUploader;
+
+    /**
+     * Whether to upload Frames through pixel buffer objects when GL 3 is
+     * available.
+     */
+    private boolean pixelBufferUpload = true;
+
+    /**
+     * Optional CRT post-processing of the VIC screen.
+     */
+    private CrtPostProcessor crtPostProcessor;
+
+    /**
+     * Shader that draws the VIC's text screen from tile data.
+     */
+    private ShaderProgram tileShader;
+
+    /**
+     * Texture that tile data is uploaded to, looked up by the tile shader.
+     */
+    private Texture tileTexture;
+
+    /**
+     * Whether the last Frame uploaded was a tile Frame, and so should be drawn by
+     * the tile shader rather than from the screen Texture's pixels.
+     */
+    private boolean drawTiles;
+
+    // The tile shader uniforms of the last tile Frame uploaded.
+    private float tileScreenLeft;
+    private float tileScreenTop;
+    private float tileScreenRight;
+    private float tileScreenBottom;
+    private float tileColumns;
+    private float tileCharacterSize;
+    private float tileBackgroundColour;
+    private float tileBorderColour;
+
+    /**
+     * Holds the VIC palette, one RGB565 pixel per colour.
+     */
+    private Pixmap palettePixmap;
+
+    /**
+     * 16x1 texture holding the VIC palette, looked up by the palette shader.
+     */
+    private Texture paletteTexture;
+
     // Currently in use components to support rendering of the Attack UFO screen.
     // The objects that these references point to will change depending on the MachineType.
-    private Pixmap screenPixmap;
     private Viewport viewport;
     private Camera camera;
-    private Texture[] screens;
-    private int drawScreen = 1;
-    private int updateScreen = 0;
+    private Texture screen;
+    private long[] screenLineHashes;
 
     // Screen resources for each MachineType.
-    private Map<MachineType, Pixmap> machineTypePixmaps;
     private Map<MachineType, Camera> machineTypeCameras;
     private Map<MachineType, Viewport> machineTypeViewports;
-    private Map<MachineType, Texture[]> machineTypeTextures;
 
     private ViewportManager viewportManager;
 
@@ -83,11 +157,20 @@ public class MachineScreen implements Screen {
         // Create the Machine, at this point not configured with a MachineType.
         this.machine = new Machine();
         this.machineRunnable = new MachineRunnable(this.machine);
+        this.displaySyncPacer = new DisplaySyncPacer();
 
         batch = new SpriteBatch();
+        paletteShader = createShader("shaders/batch.vert", "shaders/palette.frag");
+        palettePixmap = new Pixmap(Vic.PALETTE_SIZE, 1, Pixmap.Format.RGB565);
+        paletteTexture = new Texture(palettePixmap, Pixmap.Format.RGB565, false);
+        setPalette(Vic.getPalette());
+
+        crtPostProcessor = new CrtPostProcessor();
+        tileShader = createShader("shaders/batch.vert", "shaders/tile.frag");
+        Pixmap tilePixmap = new Pixmap(Frame.TILE_DATA_WIDTH, Frame.TILE_DATA_HEIGHT, Pixmap.Format.Alpha);
+        tileTexture = new Texture(tilePixmap, Pixmap.Format.Alpha, false);
+        tilePixmap.dispose();
 
-        machineTypePixmaps = new HashMap<MachineType, Pixmap>();
-        machineTypeTextures = new HashMap<MachineType, Texture[]>();
         machineTypeViewports = new HashMap<MachineType, Viewport>();
         machineTypeCameras = new HashMap<MachineType, Camera>();
 
@@ -108,7 +191,7 @@ public class MachineScreen implements Screen {
     /**
      * Initialises the Machine with the given AppConfigItem. This will represent an
      * app that was selected on the HomeScreen. As part of this initialisation, it
-     * creates the Pixmap, screen Textures, Camera and Viewport required to render
+     * creates the screen Texture, and switches to the Camera and Viewport required to render
      * the Attack UFO screen at the size needed for the MachineType being emulated.
      * 
      * @param machineType The type of VIC chip machine type, i.e. NTSC or PAL.
@@ -118,13 +201,84 @@ public class MachineScreen implements Screen {
 
         // Switch libGDX screen resources used by the Attack UFO screen to the size
         // required by the MachineType.
-        screenPixmap = machineTypePixmaps.get(machineType);
-        screens = machineTypeTextures.get(machineType);
+        createScreen();
         camera = machineTypeCameras.get(machineType);
         viewport = machineTypeViewports.get(machineType);
 
-        drawScreen = 1;
-        updateScreen = 0;
+        // The display sync settings depend on the MachineType, so are reapplied. The
+        // requested mode is used, so that DISPLAY_SYNC is retried after a fall back.
+        setPacingMode(requestedPacingMode);
+    }
+
+    /**
+     * Sets how the Machine updates are paced. If DISPLAY_SYNC is requested but the
+     * display's refresh rate is not compatible with the MachineType's frame rate,
+     * then WALL_CLOCK is used instead. This should be called on the UI thread.
+     * 
+     * @param pacingMode The PacingMode to use.
+     */
+    public void setPacingMode(PacingMode pacingMode) {
+        requestedPacingMode = pacingMode;
+        if (pacingMode == PacingMode.DISPLAY_SYNC) {
+            int refreshRate = Gdx.graphics.getDisplayMode().refreshRate;
+            if (!displaySyncPacer.configure(machine.getMachineType(), refreshRate)) {
+                Gdx.app.log("MachineScreen", "Display refresh rate of " + refreshRate
+                        + " Hz is not close enough to the frame rate for DISPLAY_SYNC. Using WALL_CLOCK.");
+                pacingMode = PacingMode.WALL_CLOCK;
+            }
+        } else {
+            machine.getVic().getSound().setSampleRateRatio(1.0);
+        }
+        machineRunnable.setPacingMode(pacingMode);
+        updateRenderingMode();
+    }
+
+    /**
+     * Switches between continuous and event driven rendering to suit the current
+     * PacingMode. In DISPLAY_SYNC mode, the Machine is updated by the render
+     * method, so rendering must be continuous. Otherwise rendering only happens
+     * when the MachineRunnable completes a frame or something in the UI changes,
+     * so nothing is drawn while paused or idle unless there is something new.
+     */
+    private void updateRenderingMode() {
+        boolean continuous = (machineRunnable.getPacingMode() == PacingMode.DISPLAY_SYNC);
+        Gdx.graphics.setContinuousRendering(continuous);
+        if (continuous) {
+            crtPostProcessor.setTargetFrameRate(Gdx.graphics.getDisplayMode().refreshRate);
+        } else if (machine.getMachineType() != null) {
+            crtPostProcessor.setTargetFrameRate(machine.getMachineType().getFramesPerSecond());
+        }
+        Gdx.graphics.requestRendering();
+    }
+
+    /**
+     * Creates a ShaderProgram from the given vertex and fragment shader files.
+     * 
+     * @param vertexShaderPath   The path of the vertex shader in the assets.
+     * @param fragmentShaderPath The path of the fragment shader in the assets.
+     * 
+     * @return The compiled ShaderProgram.
+     */
+    private ShaderProgram createShader(String vertexShaderPath, String fragmentShaderPath) {
+        ShaderProgram shader = new ShaderProgram(Gdx.files.internal(vertexShaderPath).readString(),
+                Gdx.files.internal(fragmentShaderPath).readString());
+        if (!shader.isCompiled()) {
+            throw new GdxRuntimeException("Failed to compile " + fragmentShaderPath + ": " + shader.getLog());
+        }
+        return shader;
+    }
+
+    /**
+     * Sets the palette used to convert the VIC's 4-bit pixel values into colours.
+     * Since the conversion happens on the GPU, this only requires uploading the 16
+     * palette entries.
+     * 
+     * @param palette The 16 palette colours in RGB565 format.
+     */
+    public void setPalette(short[] palette) {
+        BufferUtils.copy(palette, 0, palettePixmap.getPixels(), Vic.PALETTE_SIZE);
+        paletteTexture.draw(palettePixmap, 0, 0);
+        Gdx.graphics.requestRendering();
     }
 
     /**
@@ -135,27 +289,150 @@ public class MachineScreen implements Screen {
     private void createScreenResourcesForMachineType(MachineType machineType) {
         // Create the libGDX screen resources used by the Attack UFO screen to the size
         // required by the MachineType.
-        Pixmap screenPixmap = new Pixmap(machineType.getTotalScreenWidth(), machineType.getTotalScreenHeight(),
-                Pixmap.Format.RGB565);
-        Texture[] screens = new Texture[3];
-        screens[0] = new Texture(screenPixmap, Pixmap.Format.RGB565, false);
-        screens[1] = new Texture(screenPixmap, Pixmap.Format.RGB565, false);
-        screens[2] = new Texture(screenPixmap, Pixmap.Format.RGB565, false);
         Camera camera = new OrthographicCamera();
         Viewport viewport = new ExtendViewport((machineType.getTotalScreenWidth() / 3) * 4,
                 (int) (machineType.getTotalScreenWidth() * 2.315), camera);
 
-        machineTypePixmaps.put(machineType, screenPixmap);
-        machineTypeTextures.put(machineType, screens);
         machineTypeCameras.put(machineType, camera);
         machineTypeViewports.put(machineType, viewport);
     }
 
+    /**
+     * Creates the screen Texture that the VIC frames are uploaded to, at the size
+     * of the frames generated by the Machine. The size depends on the MachineType,
+     * and on whether the VIC stores only the visible window or the whole raster.
+     */
+    private void createScreen() {
+        if (screen != null) {
+            screen.dispose();
+        }
+
+        // Each pixel is a palette index, so a single channel format is used. A single
+        // Texture is enough, since the VIC's triple buffer ensures that the Frame
+        // being uploaded is never the one being written. The Pixmap is only needed to
+        // create the Texture. Frames are uploaded straight from the VIC's buffers.
+        Pixmap screenPixmap = new Pixmap(machine.getFrameWidth(), machine.getFrameHeight(), Pixmap.Format.Alpha);
+        screen = new Texture(screenPixmap, Pixmap.Format.Alpha, false);
+        screenPixmap.dispose();
+
+        // The hashes of the lines currently held by the screen Texture. These start
+        // out not matching any line, so that the first frame uploads every line.
+        screenLineHashes = new long[machine.getFrameHeight()];
+        Arrays.fill(screenLineHashes, 1L);
+        drawTiles = false;
+
+        createPixelBufferUploader();
+    }
+
+    /**
+     * Creates the PixelBufferUploader for the current Frame size, if pixel buffer
+     * uploads are enabled and GL 3 is available. Otherwise Frames are uploaded
+     * directly from their buffers, as GLES 2 requires.
+     */
+    private void createPixelBufferUploader() {
+        if (pixelBufferUploader != null) {
+            pixelBufferUploader.dispose();
+            pixelBufferUploader = null;
+        }
+        if (pixelBufferUpload && (Gdx.gl30 != null) && (screen != null)) {
+            pixelBufferUploader = new PixelBufferUploader(Gdx.gl30, machine.getFrameWidth(), machine.getFrameHeight());
+        }
+    }
+
+    /**
+     * Uploads the lines of the given Frame that differ from those currently held
+     * by the given screen Texture. Runs of consecutive changed lines are uploaded
+     * as a single band.
+     * 
+     * @param frame      The Frame to upload.
+     * @param screen     The screen Texture to upload the Frame to.
+     * @param lineHashes The hashes of the lines currently held by the Texture.
+     * 
+     * @return The number of bytes uploaded.
+     */
+    private int uploadChangedLines(Frame frame, Texture screen, long[] lineHashes) {
+        // The Frame's pixels are in a direct buffer that is uploaded as is. The Frame
+        // is owned by this thread until the next one is taken, so it is safe to move
+        // the buffer's position around.
+        ByteBuffer pixels = frame.getFramePixels();
+        long[] frameLineHashes = frame.getLineHashes();
+        int width = machine.getFrameWidth();
+        int height = machine.getFrameHeight();
+        int bytesUploaded = 0;
+
+        // Rows of single byte pixels are not necessarily 4 byte aligned.
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        screen.bind();
+
+        int line = 0;
+        while (line < height) {
+            if (frameLineHashes[line] == lineHashes[line]) {
+                line++;
+                continue;
+            }
+
+            // Find the end of this band of changed lines.
+            int bandStart = line;
+            while ((line < height) && (frameLineHashes[line] != lineHashes[line])) {
+                lineHashes[line] = frameLineHashes[line];
+                line++;
+            }
+
+            int bandOffset = bandStart * width;
+            int bandSize = (line - bandStart) * width;
+            pixels.position(bandOffset);
+            Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, bandStart, width, line - bandStart, GL20.GL_ALPHA,
+                    GL20.GL_UNSIGNED_BYTE, pixels);
+            pixels.clear();
+            bytesUploaded += bandSize;
+        }
+
+        return bytesUploaded;
+    }
+
+    /**
+     * Uploads the tile data of the given tile Frame, and keeps the values that
+     * the tile shader needs to draw it.
+     * 
+     * @param frame The tile Frame to upload.
+     * 
+     * @return The number of bytes uploaded.
+     */
+    private int uploadTiles(Frame frame) {
+        // Only the rows of tile data that are in use are uploaded.
+        ByteBuffer tileData = frame.getTileData();
+        int rows = (frame.getTileDataSize() + Frame.TILE_DATA_WIDTH - 1) / Frame.TILE_DATA_WIDTH;
+
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        tileTexture.bind();
+        tileData.clear();
+        Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, 0, Frame.TILE_DATA_WIDTH, rows, GL20.GL_ALPHA,
+                GL20.GL_UNSIGNED_BYTE, tileData);
+
+        tileScreenLeft = frame.getTileScreenLeft();
+        tileScreenTop = frame.getTileScreenTop();
+        tileScreenRight = frame.getTileScreenRight();
+        tileScreenBottom = frame.getTileScreenBottom();
+        tileColumns = frame.getTileColumns();
+        tileCharacterSize = frame.getTileCharacterSize();
+        tileBackgroundColour = frame.getTileBackgroundColour();
+        tileBorderColour = frame.getTileBorderColour();
+
+        return rows * Frame.TILE_DATA_WIDTH;
+    }
+
     private long lastLogTime;
+    private long avgUploadBytes;
+    private long avgUploadTime;
     private long avgRenderTime;
     private long avgDrawTime;
     private long renderCount;
 
+    // Whether the next render's delta is the time between consecutively presented
+    // frames, which is all that the CRT post-processing frame time should count.
+    private boolean frameTimeValid;
+    private long lastSkippedFrameCount;
+
     @Override
     public void render(float delta) {
         long renderStartTime = TimeUtils.nanoTime();
@@ -163,21 +440,54 @@ public class MachineScreen implements Screen {
         boolean draw = false;
 
         if (machine.isPaused()) {
-            // When paused, we limit the draw frequency since there isn't anything to
-            // change.
-            draw = ((fps < 30) || ((renderCount % (fps / 30)) == 0));
+            // When rendering is event driven, render is only called when something has
+            // changed, so always draws. Otherwise we limit the draw frequency when paused,
+            // since there isn't anything to change.
+            draw = (!Gdx.graphics.isContinuousRendering() || (fps < 30) || ((renderCount % (fps / 30)) == 0));
+            frameTimeValid = false;
 
         } else {
+            // The frame time is only meaningful while the Machine is running, and only
+            // between consecutively presented frames. The first delta after a pause covers
+            // the whole pause, and skipped frames space the renders out, which would make
+            // a slow CPU look like a slow GPU.
+            long skippedFrameCount = machine.getSkippedFrameCount();
+            if (frameTimeValid && (skippedFrameCount == lastSkippedFrameCount)) {
+                crtPostProcessor.update(delta);
+            }
+            frameTimeValid = true;
+            lastSkippedFrameCount = skippedFrameCount;
+
+            if ((machineRunnable.getPacingMode() == PacingMode.DISPLAY_SYNC) && machineRunnable.isIdle()) {
+                // In DISPLAY_SYNC mode, the Machine is updated here, in step with the vsync.
+                if (displaySyncPacer.isFrameDue()) {
+                    VicSound sound = machine.getVic().getSound();
+                    sound.setSampleRateRatio(displaySyncPacer.updateSampleRateRatio(sound.getSamplesWritten(),
+                            sound.getAudioLatency(), sound.getSampleRate()));
+                    machine.update(false);
+                }
+            }
+
             // Check if the Machine has a frame ready to be displayed.
-            short[] framePixels = machine.getFramePixels();
-            if (framePixels != null) {
-                // If it does then update the Texture on the GPU.
-                BufferUtils.copy(framePixels, 0, screenPixmap.getPixels(),
-                        machine.getMachineType().getTotalScreenWidth()
-                                * machine.getMachineType().getTotalScreenHeight());
-                screens[updateScreen].draw(screenPixmap, 0, 0);
-                updateScreen = (updateScreen + 1) % 3;
-                drawScreen = (drawScreen + 1) % 3;
+            Frame frame = machine.getFrame();
+            if (frame != null) {
+                // If it does then either upload its tile data, or update the changed lines of
+                // the Texture on the GPU.
+                // The time taken is measured, so that the direct and pixel buffer uploads
+                // can be compared.
+                long uploadStartTime = TimeUtils.nanoTime();
+                int uploadBytes = 0;
+                drawTiles = frame.isTileFrame();
+                if (drawTiles) {
+                    uploadBytes = uploadTiles(frame);
+                } else if (pixelBufferUploader != null) {
+                    uploadBytes = pixelBufferUploader.upload(frame, screen, screenLineHashes);
+                } else {
+                    uploadBytes = uploadChangedLines(frame, screen, screenLineHashes);
+                }
+                long uploadDuration = TimeUtils.nanoTime() - uploadStartTime;
+                avgUploadBytes += ((uploadBytes - avgUploadBytes) >> 4);
+                avgUploadTime += ((uploadDuration - avgUploadTime) >> 4);
             }
 
             draw = true;
@@ -211,18 +521,56 @@ public class MachineScreen implements Screen {
         Gdx.gl.glClearColor(0, 0, 0, 1);
         Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
 
-        // Render the VIC screen.
+        // If the CRT post-processing is active, the VIC screen is drawn in to its scene
+        // FrameBuffer, and from there to the display.
+        boolean postProcess = crtPostProcessor.isActive();
+        if (postProcess) {
+            crtPostProcessor.beginScene();
+        }
+
+        // Render the VIC screen. The palette shader looks up the colour of each
+        // palette index in the palette texture, which is bound to texture unit 1. For
+        // tile Frames, the tile shader draws the pixels from the tile data on texture
+        // unit 2 instead, and the screen Texture only provides the coordinates.
         camera.update();
+        paletteTexture.bind(1);
+        if (drawTiles) {
+            tileTexture.bind(2);
+        }
+        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+        ShaderProgram shader = (drawTiles ? tileShader : paletteShader);
+        batch.setShader(shader);
         batch.setProjectionMatrix(camera.combined);
         batch.disableBlending();
-        batch.begin();
+        if (drawTiles) {
+            // SpriteBatch sets u_texture when it begins, but the tile shader doesn't have
+            // it, so that mustn't be treated as an error for this one call.
+            boolean pedantic = ShaderProgram.pedantic;
+            ShaderProgram.pedantic = false;
+            batch.begin();
+            ShaderProgram.pedantic = pedantic;
+        } else {
+            batch.begin();
+        }
+        shader.setUniformi("u_palette", 1);
+        if (drawTiles) {
+            shader.setUniformi("u_tiles", 2);
+            shader.setUniformf("u_frameSize", machine.getFrameWidth(), machine.getFrameHeight());
+            shader.setUniformf("u_textScreen", tileScreenLeft, tileScreenTop, tileScreenRight, tileScreenBottom);
+            shader.setUniformf("u_cells", tileColumns, tileCharacterSize, tileBackgroundColour, tileBorderColour);
+        }
         Color c = batch.getColor();
         batch.setColor(c.r, c.g, c.b, 1f);
-        batch.draw(screens[drawScreen], 0, -140, machine.getScreenWidth() / 2, machine.getScreenHeight() / 2,
+        batch.draw(screen, 0, -140, machine.getScreenWidth() / 2, machine.getScreenHeight() / 2,
                 machine.getScreenWidth(), machine.getScreenHeight(), 2.0f, 2.0f, 90.0f, machine.getScreenLeft(),
                 machine.getScreenTop(), machine.getMachineType().getVisibleScreenWidth(),
                 machine.getMachineType().getVisibleScreenHeight(), false, false);
         batch.end();
+        batch.setShader(null);
+
+        if (postProcess) {
+            crtPostProcessor.endScene(batch);
+        }
 
         // Render the UI elements, e.g. the keyboard and joystick icons.
         viewportManager.getCurrentCamera().update();
@@ -242,6 +590,11 @@ public class MachineScreen implements Screen {
         camera.position.y = machine.getScreenHeight() - viewport.getWorldHeight() / 2;
         camera.update();
 
+        // The VIC screen is drawn rotated by 90 degrees, with each line 2 world units
+        // wide, so the scanlines run vertically on the display.
+        crtPostProcessor.resize(Gdx.graphics.getBackBufferWidth(), Gdx.graphics.getBackBufferHeight());
+        crtPostProcessor.setScanlines(2.0f * viewport.getScreenWidth() / viewport.getWorldWidth(), true);
+
         machineInputProcessor.resize(width, height);
         viewportManager.update(width, height);
     }
@@ -254,6 +607,7 @@ public class MachineScreen implements Screen {
 
     @Override
     public void resume() {
+        frameTimeValid = false;
         machineRunnable.resume();
     }
 
@@ -265,6 +619,8 @@ public class MachineScreen implements Screen {
         // PixMap and Textures
         // required for the MachineType.
         Gdx.input.setInputProcessor(machineInputProcessor);
+        updateRenderingMode();
+        frameTimeValid = false;
         machineRunnable.resume();
     }
 
@@ -276,25 +632,95 @@ public class MachineScreen implements Screen {
     @Override
     public void dispose() {
         batch.dispose();
+        paletteShader.dispose();
+        tileShader.dispose();
+        crtPostProcessor.dispose();
+        tileTexture.dispose();
+        paletteTexture.dispose();
+        palettePixmap.dispose();
         machineRunnable.stop();
+        machine.dispose();
         disposeScreens();
     }
 
     /**
-     * Disposes the libGDX screen resources for each MachineType.
+     * Disposes the libGDX screen resources.
      */
     private void disposeScreens() {
         // Gdx.app.log("MachineScreen", "Disposing screens");
-        for (Pixmap pixmap : machineTypePixmaps.values()) {
-            pixmap.dispose();
+        if (screen != null) {
+            screen.dispose();
         }
-        for (Texture[] screens : machineTypeTextures.values()) {
-            screens[0].dispose();
-            screens[1].dispose();
-            screens[2].dispose();
+        if (pixelBufferUploader != null) {
+            pixelBufferUploader.dispose();
         }
     }
 
+    /**
+     * Gets the average number of bytes uploaded to the GPU per frame.
+     * 
+     * @return The average number of bytes uploaded per frame.
+     */
+    public long getAvgUploadBytes() {
+        return avgUploadBytes;
+    }
+
+    /**
+     * Requests a screenshot of the next completed VIC frame. This returns
+     * straight away, and the screenshot is written in the background.
+     * 
+     * @param file   The file to write the screenshot to.
+     * @param format The Format to write the screenshot in.
+     * 
+     * @return true if the request was accepted, or false if too many captures
+     *         are already waiting or the Machine has not been initialised.
+     */
+    public boolean captureScreenshot(FileHandle file, FrameCapture.Format format) {
+        FrameCapture frameCapture = machine.getFrameCapture();
+        return ((frameCapture != null) && frameCapture.requestScreenshot(file, format));
+    }
+
+    /**
+     * Gets the average time taken to upload each frame to the GPU.
+     * 
+     * @return The average upload time in nanoseconds.
+     */
+    public long getAvgUploadTime() {
+        return avgUploadTime;
+    }
+
+    /**
+     * Sets whether Frames are uploaded through pixel buffer objects when GL 3 is
+     * available. This should be called on the UI thread.
+     * 
+     * @param pixelBufferUpload true to upload through pixel buffer objects.
+     */
+    public void setPixelBufferUpload(boolean pixelBufferUpload) {
+        this.pixelBufferUpload = pixelBufferUpload;
+        createPixelBufferUploader();
+        avgUploadTime = 0;
+    }
+
+    /**
+     * Returns whether Frames are currently being uploaded through pixel buffer
+     * objects.
+     * 
+     * @return true if pixel buffer objects are in use.
+     */
+    public boolean isPixelBufferUploadActive() {
+        return (pixelBufferUploader != null);
+    }
+
+    /**
+     * Gets the CrtPostProcessor, which controls the CRT post-processing of the VIC
+     * screen.
+     * 
+     * @return The CrtPostProcessor.
+     */
+    public CrtPostProcessor getCrtPostProcessor() {
+        return crtPostProcessor;
+    }
+
     /**
      * Gets the Machine that this MachineScreen is running.
      * 
@@ -0,0 +1,33 @@
+package emu.attackufo;
+
+/**
+ * An enum that represents the ways in which the speed of the emulation can be
+ * paced.
+ * 
+ * @author Lance Ewing
+ */
+public enum PacingMode {
+
+    /**
+     * Frames are paced by the wall clock, at the frame rate of the MachineType.
+     */
+    WALL_CLOCK,
+
+    /**
+     * Frames are paced by the audio device. After each frame, the emulation waits
+     * until the audio output's ring buffer is no more than half full, which only
+     * happens as fast as the audio device plays the samples. The emulation speed
+     * is therefore locked to the audio device's sample clock. If there is no audio
+     * device, or sound is muted, then this falls back on the wall clock.
+     */
+    AUDIO_CLOCK,
+
+    /**
+     * Frames are paced by the display's vsync. The Machine is updated from within
+     * the MachineScreen's render method rather than by the MachineRunnable
+     * thread, and the sound output is resampled by a fraction of a percent to
+     * keep it continuous. This is only possible if the display's refresh rate is
+     * close to a multiple of the Machine's frame rate.
+     */
+    DISPLAY_SYNC
+}
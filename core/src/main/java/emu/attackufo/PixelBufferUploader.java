@@ -0,0 +1,169 @@
+package emu.attackufo;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.GL30;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.utils.Disposable;
+
+import emu.attackufo.video.Frame;
+
+/**
+ * Uploads VIC Frames to the screen Texture through a ring of pixel buffer
+ * objects, which requires GL 3. The changed lines of each Frame are copied in
+ * to the next pixel buffer in the ring, and the texture update is then sourced
+ * from that buffer, so the GPU copies the pixels in to the Texture in its own
+ * time, rather than the driver doing so before glTexSubImage2D returns. By the
+ * time a pixel buffer comes round again, the GPU has long finished with it, so
+ * mapping it doesn't stall either.
+ * 
+ * @author Lance Ewing
+ */
+public class PixelBufferUploader implements Disposable {
+
+    /**
+     * The number of pixel buffers in the ring.
+     */
+    private static final int RING_SIZE = 3;
+
+    /**
+     * The GL 3 interface.
+     */
+    private GL30 gl30;
+
+    /**
+     * The pixel buffer object handles.
+     */
+    private int[] pixelBuffers;
+
+    /**
+     * The size of each pixel buffer in bytes, i.e. the size of a Frame.
+     */
+    private int bufferSize;
+
+    /**
+     * The index of the pixel buffer to use next.
+     */
+    private int nextBuffer;
+
+    // The start and end lines of the bands of the current upload.
+    private int[] bandStarts;
+    private int[] bandEnds;
+
+    /**
+     * Constructor for PixelBufferUploader.
+     * 
+     * @param gl30        The GL 3 interface.
+     * @param frameWidth  The width of the Frames in pixels.
+     * @param frameHeight The height of the Frames in pixels.
+     */
+    public PixelBufferUploader(GL30 gl30, int frameWidth, int frameHeight) {
+        this.gl30 = gl30;
+        this.bufferSize = frameWidth * frameHeight;
+        this.pixelBuffers = new int[RING_SIZE];
+
+        // There can't be more bands than half the lines, rounded up.
+        this.bandStarts = new int[(frameHeight + 1) / 2];
+        this.bandEnds = new int[(frameHeight + 1) / 2];
+
+        for (int i = 0; i < RING_SIZE; i++) {
+            pixelBuffers[i] = gl30.glGenBuffer();
+            gl30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, pixelBuffers[i]);
+            gl30.glBufferData(GL30.GL_PIXEL_UNPACK_BUFFER, bufferSize, null, GL20.GL_STREAM_DRAW);
+        }
+        gl30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    /**
+     * Uploads the lines of the given Frame that differ from those currently held
+     * by the given screen Texture. Runs of consecutive changed lines are uploaded
+     * as a single band.
+     * 
+     * @param frame      The Frame to upload.
+     * @param screen     The screen Texture to upload the Frame to.
+     * @param lineHashes The hashes of the lines currently held by the Texture.
+     * 
+     * @return The number of bytes uploaded.
+     */
+    public int upload(Frame frame, Texture screen, long[] lineHashes) {
+        ByteBuffer pixels = frame.getFramePixels();
+        long[] frameLineHashes = frame.getLineHashes();
+        int height = frameLineHashes.length;
+        int width = bufferSize / height;
+
+        // Find out whether anything has changed before mapping a buffer.
+        int line = 0;
+        while ((line < height) && (frameLineHashes[line] == lineHashes[line])) {
+            line++;
+        }
+        if (line == height) {
+            return 0;
+        }
+
+        int pixelBuffer = pixelBuffers[nextBuffer];
+        nextBuffer = (nextBuffer + 1) % RING_SIZE;
+
+        // Invalidating the whole buffer lets the driver hand back fresh memory if the
+        // GPU is somehow still reading the old contents, rather than waiting for it.
+        gl30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, pixelBuffer);
+        Buffer mapped = gl30.glMapBufferRange(GL30.GL_PIXEL_UNPACK_BUFFER, 0, bufferSize,
+                GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            gl30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, 0);
+            return 0;
+        }
+        ByteBuffer mappedPixels = (ByteBuffer) mapped;
+
+        // Copy the changed bands in to the pixel buffer, at the same offsets as in the
+        // Frame, and note where they are.
+        int bandCount = 0;
+        int bytesUploaded = 0;
+        while (line < height) {
+            if (frameLineHashes[line] == lineHashes[line]) {
+                line++;
+                continue;
+            }
+
+            int bandStart = line;
+            while ((line < height) && (frameLineHashes[line] != lineHashes[line])) {
+                lineHashes[line] = frameLineHashes[line];
+                line++;
+            }
+
+            int bandOffset = bandStart * width;
+            int bandSize = (line - bandStart) * width;
+            pixels.limit(bandOffset + bandSize);
+            pixels.position(bandOffset);
+            mappedPixels.position(bandOffset);
+            mappedPixels.put(pixels);
+            pixels.clear();
+
+            bandStarts[bandCount] = bandStart;
+            bandEnds[bandCount++] = line;
+            bytesUploaded += bandSize;
+        }
+        gl30.glUnmapBuffer(GL30.GL_PIXEL_UNPACK_BUFFER);
+
+        // Update the Texture from the pixel buffer. The last argument is an offset in
+        // to the bound buffer rather than a pointer, so these calls return straight away.
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        screen.bind();
+        for (int i = 0; i < bandCount; i++) {
+            gl30.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, bandStarts[i], width, bandEnds[i] - bandStarts[i],
+                    GL20.GL_ALPHA, GL20.GL_UNSIGNED_BYTE, bandStarts[i] * width);
+        }
+        gl30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, 0);
+
+        return bytesUploaded;
+    }
+
+    @Override
+    public void dispose() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            gl30.glDeleteBuffer(pixelBuffers[i]);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package emu.attackufo.io;
+
+/**
+ * A lock free queue of key events, for handing them over from the UI thread to
+ * the thread that is emulating the Machine. Each event is stamped with the time
+ * that it happened, so that the emulation thread can tell which events were
+ * before the frame it is about to emulate. Like the SampleRingBuffer, the read
+ * and write positions only ever increase, each is only written by one thread,
+ * and the capacity is a power of two. All the storage is allocated up front, so
+ * that queuing an event doesn't create garbage.
+ *
+ * @author Lance Ewing
+ */
+public class InputEventQueue {
+
+    /**
+     * The bit of an event that is set if the key was pressed, and clear if it was
+     * released. The bits below this hold the keycode.
+     */
+    public static final int PRESSED = 0x10000;
+
+    /**
+     * Mask that gets the keycode from an event.
+     */
+    public static final int KEYCODE_MASK = 0xFFFF;
+
+    /**
+     * The events held in the queue.
+     */
+    private final int[] events;
+
+    /**
+     * The time of each event, in nanoseconds, as given by TimeUtils.nanoTime().
+     */
+    private final long[] times;
+
+    /**
+     * Mask that turns a position into an index into the events and times arrays.
+     */
+    private final int mask;
+
+    /**
+     * The total number of events added. Only written by the producer.
+     */
+    private volatile long writePosition;
+
+    /**
+     * The total number of events removed. Only written by the consumer.
+     */
+    private volatile long readPosition;
+
+    /**
+     * Constructor for InputEventQueue.
+     *
+     * @param minCapacity The minimum number of events that the queue must hold.
+     *                    This is rounded up to a power of two.
+     */
+    public InputEventQueue(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        events = new int[capacity];
+        times = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds a key event to the end of the queue, if there is room. Only the
+     * producer thread should call this.
+     *
+     * @param time    The time of the event, as given by TimeUtils.nanoTime().
+     * @param keycode The keycode of the key.
+     * @param pressed true if the key was pressed; false if it was released.
+     *
+     * @return true if the event was added; false if the queue was full.
+     */
+    public boolean offer(long time, int keycode, boolean pressed) {
+        long write = writePosition;
+        if ((write - readPosition) >= events.length) {
+            return false;
+        }
+
+        int index = (int) (write & mask);
+        events[index] = (keycode & KEYCODE_MASK) | (pressed ? PRESSED : 0);
+        times[index] = time;
+
+        // Updating the volatile position publishes the event to the consumer.
+        writePosition = write + 1;
+        return true;
+    }
+
+    /**
+     * Returns whether there is an event at the head of the queue that happened at
+     * or before the given time. Only the consumer thread should call this.
+     *
+     * @param time The time, as given by TimeUtils.nanoTime().
+     *
+     * @return true if the head event happened at or before the given time.
+     */
+    public boolean hasEventBefore(long time) {
+        long read = readPosition;
+        return (read != writePosition) && ((times[(int) (read & mask)] - time) <= 0);
+    }
+
+    /**
+     * Gets the event at the head of the queue without removing it. Only the
+     * consumer thread should call this, and only when the queue isn't empty.
+     *
+     * @return The event, i.e. the keycode, with the PRESSED bit set if the key was
+     *         pressed.
+     */
+    public int peek() {
+        return events[(int) (readPosition & mask)];
+    }
+
+    /**
+     * Removes the event at the head of the queue. Only the consumer thread should
+     * call this, and only when the queue isn't empty.
+     */
+    public void remove() {
+        // Updating the volatile position gives the space back to the producer.
+        readPosition = readPosition + 1;
+    }
+
+    /**
+     * Removes all of the events in the queue. Only the consumer thread should call
+     * this.
+     */
+    public void clear() {
+        readPosition = writePosition;
+    }
+
+    /**
+     * @return the number of events currently in the queue.
+     */
+    public int size() {
+        return (int) (writePosition - readPosition);
+    }
+}
@@ -1,12 +1,26 @@
 package emu.attackufo.io;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.badlogic.gdx.Input.Keys;
+import com.badlogic.gdx.utils.TimeUtils;
 
 /**
  * This class emulates the Attack UFO controllers by listening to key events and
  * translating the relevant key codes in to controller signals.
  * 
+ * The key events arrive on the UI thread, but the controller signals are read
+ * by the thread that is emulating the Machine. So rather than changing the
+ * signals straight away, each key event is stamped with the time and added to
+ * an InputEventQueue. The emulating thread then applies the events at the
+ * start of each frame, so that the emulated code always sees the input change
+ * at the same point in a frame, and never part way through reading it.
+ * 
+ * If the queue fills up, e.g. because the Machine isn't being updated, or when
+ * the Machine is resumed, the queued events are replaced by a resync to the
+ * keys that are currently down. This makes sure that a release is never lost,
+ * and that a backlog of stale events isn't replayed.
+ * 
  * @author Lance Ewing
  */
 public class Joystick {
@@ -54,12 +68,41 @@ public class Joystick {
     };
 
     /**
-     * HashMap used to store mappings between Java key events and joystick signals.
+     * The maximum number of key events that can be waiting to be applied.
      */
-    private HashMap<Integer, Integer> keyToJoystickMap;
+    private static final int EVENT_QUEUE_SIZE = 256;
 
     /**
-     * The current state of the joystick signals.
+     * The value of syncSignals when there isn't a resync pending.
+     */
+    private static final int NO_SYNC = -1;
+
+    /**
+     * The joystick signals for each keycode, or 0 if the key isn't mapped. This
+     * isn't changed after construction, so it is safe to read from any thread.
+     */
+    private final int[] keyToJoystickSignals;
+
+    /**
+     * The key events waiting to be applied by the emulating thread.
+     */
+    private final InputEventQueue eventQueue;
+
+    /**
+     * Whether each key is currently down. Only used by the UI thread.
+     */
+    private final boolean[] keysDown;
+
+    /**
+     * The joystick signals of the keys that were down when a resync was
+     * requested, or NO_SYNC if there isn't one pending. While a resync is
+     * pending, the UI thread updates this rather than queuing events.
+     */
+    private final AtomicInteger syncSignals;
+
+    /**
+     * The current state of the joystick signals. Only used by the emulating
+     * thread.
      */
     private int joystickState;
 
@@ -67,13 +110,15 @@ public class Joystick {
      * Constructor for Joystick.
      */
     public Joystick() {
-        // Create the hash map for fast lookup.
-        keyToJoystickMap = new HashMap<Integer, Integer>();
-
-        // Initialise the key to joystick signal HashMap.
+        // Initialise the key to joystick signal table, for fast lookup.
+        keyToJoystickSignals = new int[Keys.MAX_KEYCODE + 1];
         for (int i = 0; i < keyToJoystickData.length; i++) {
-            keyToJoystickMap.put(keyToJoystickData[i][0], keyToJoystickData[i][1]);
+            keyToJoystickSignals[keyToJoystickData[i][0]] = keyToJoystickData[i][1];
         }
+
+        eventQueue = new InputEventQueue(EVENT_QUEUE_SIZE);
+        keysDown = new boolean[Keys.MAX_KEYCODE + 1];
+        syncSignals = new AtomicInteger(NO_SYNC);
     }
 
     /**
@@ -86,26 +131,108 @@ public class Joystick {
     }
 
     /**
-     * Invoked when a key has been pressed.
+     * Invoked when a key has been pressed. The key event is queued, to be applied
+     * at the start of the next frame.
      *
      * @param keycode The keycode of the key that has been pressed.
      */
     public void keyPressed(int keycode) {
-        Integer joystickSignal = keyToJoystickMap.get(keycode);
-        if (joystickSignal != null) {
-            joystickState |= joystickSignal;
+        if (getJoystickSignal(keycode) != 0) {
+            keysDown[keycode] = true;
+            queueEvent(keycode, true);
         }
     }
 
     /**
-     * Invoked when a key has been released.
+     * Invoked when a key has been released. The key event is queued, to be applied
+     * at the start of the next frame.
      *
      * @param keycode The keycode of the key that has been released.
      */
     public void keyReleased(int keycode) {
-        Integer joystickSignal = keyToJoystickMap.get(keycode);
-        if (joystickSignal != null) {
-            joystickState &= (~joystickSignal);
+        if (getJoystickSignal(keycode) != 0) {
+            keysDown[keycode] = false;
+            queueEvent(keycode, false);
+        }
+    }
+
+    /**
+     * Queues a key event. If a resync is already pending, or the queue is full,
+     * then the pending resync is updated to the keys that are now down instead,
+     * so that the event is never lost.
+     *
+     * @param keycode The keycode of the key.
+     * @param pressed true if the key was pressed; false if it was released.
+     */
+    private void queueEvent(int keycode, boolean pressed) {
+        if ((syncSignals.get() != NO_SYNC) || !eventQueue.offer(TimeUtils.nanoTime(), keycode, pressed)) {
+            resync();
+        }
+    }
+
+    /**
+     * Requests that the queued key events are discarded, and the joystick signals
+     * set to match the keys that are currently down, at the start of the next
+     * frame. This is invoked on the UI thread when the Machine is resumed, so that
+     * the events queued while it was paused are not replayed.
+     */
+    public void resync() {
+        int signals = 0;
+        for (int i = 0; i < keyToJoystickData.length; i++) {
+            if (keysDown[keyToJoystickData[i][0]]) {
+                signals |= keyToJoystickData[i][1];
+            }
         }
+        syncSignals.set(signals);
+    }
+
+    /**
+     * Applies the queued key events that happened at or before the given time to
+     * the joystick signals. This is invoked by the emulating thread at the start
+     * of each frame.
+     * 
+     * If a key is pressed and released again before the same frame, then the
+     * release is held back until the next frame, along with any events after it.
+     * Otherwise a quick tap of a key would never be seen by the emulated code.
+     *
+     * @param time The start time of the frame, as given by TimeUtils.nanoTime().
+     */
+    public void applyInputEvents(long time) {
+        if (syncSignals.get() != NO_SYNC) {
+            // The queue is cleared before the resync is taken, since the UI thread
+            // doesn't queue anything while the resync is pending.
+            eventQueue.clear();
+            joystickState = syncSignals.getAndSet(NO_SYNC);
+            return;
+        }
+
+        int pressedSignals = 0;
+
+        while (eventQueue.hasEventBefore(time)) {
+            int event = eventQueue.peek();
+            int joystickSignal = keyToJoystickSignals[event & InputEventQueue.KEYCODE_MASK];
+
+            if ((event & InputEventQueue.PRESSED) != 0) {
+                joystickState |= joystickSignal;
+                pressedSignals |= joystickSignal;
+            } else if ((pressedSignals & joystickSignal) != 0) {
+                break;
+            } else {
+                joystickState &= (~joystickSignal);
+            }
+
+            eventQueue.remove();
+        }
+    }
+
+    /**
+     * Gets the joystick signal for the given keycode.
+     *
+     * @param keycode The keycode of the key.
+     *
+     * @return The joystick signal, or 0 if the key isn't mapped to one.
+     */
+    private int getJoystickSignal(int keycode) {
+        return ((keycode >= 0) && (keycode < keyToJoystickSignals.length) ? keyToJoystickSignals[keycode] : 0);
     }
 }
@@ -50,12 +50,17 @@ public class Memory {
     private void initVicMemory(Vic vic, Pia pia) {
         // At $0000 is 1K of 8-bit RAM. The lower half is used for the normal 6502
         // zero-page and stack. The second half from $0200-$03FF is used for the 
-        // Video screen memory.
-        mapChipToMemory(new RamChip(), 0x0000, 0x03FF);
+        // Video screen memory. The VIC is told about changes to the RAM chips, so that
+        // it can redraw only the character cells that have changed.
+        RamChip ram = new RamChip();
+        ram.setWriteListener(vic);
+        mapChipToMemory(ram, 0x0000, 0x03FF);
 
         // At $0400 is 1K of 4-bit RAM. The lower half is not used, but the top half
         // from $0600 is used for the colour RAM.
-        mapChipToMemory(new NibbleRamChip(), 0x0400, 0x07FF);
+        NibbleRamChip colourRam = new NibbleRamChip();
+        colourRam.setWriteListener(vic);
+        mapChipToMemory(colourRam, 0x0400, 0x07FF);
 
         mapChipToMemory(new UnconnectedMemory(), 0x0800, 0x0FFF);
 
@@ -71,7 +76,9 @@ public class Memory {
         mapChipToMemory(new UnconnectedMemory(), 0x1404, 0x1BFF);
 
         // This 1K of 8-bit RAM is used for modifiable character data.
-        mapChipToMemory(new RamChip(), 0x1C00, 0x1FFF);
+        RamChip charRam = new RamChip();
+        charRam.setWriteListener(vic);
+        mapChipToMemory(charRam, 0x1C00, 0x1FFF);
 
         // The second half of the memory map consists of the eight ROM chips.
         mapChipToMemory(new RomChip(), 0x2000, 0x23FF, Gdx.files.internal("roms/1.rom").readBytes());
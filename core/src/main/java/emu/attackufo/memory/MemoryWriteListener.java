@@ -0,0 +1,19 @@
+package emu.attackufo.memory;
+
+/**
+ * This interface is implemented by classes that need to know when the contents
+ * of a memory address are changed, such as the VIC chip tracking changes to
+ * video memory.
+ *
+ * @author Lance Ewing
+ */
+public interface MemoryWriteListener {
+
+    /**
+     * Invoked when a write changes the contents of the given memory address. This
+     * is invoked before the new value is stored.
+     *
+     * @param address the address whose contents are changing.
+     */
+    void memoryWritten(int address);
+}
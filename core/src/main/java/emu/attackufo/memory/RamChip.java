@@ -7,6 +7,21 @@ package emu.attackufo.memory;
  */
 public class RamChip extends MemoryMappedChip {
 
+    /**
+     * Optional listener that is told when a write changes the contents of this chip.
+     */
+    private MemoryWriteListener writeListener;
+
+    /**
+     * Sets the listener that is told when a write changes the contents of this
+     * chip.
+     *
+     * @param writeListener the MemoryWriteListener to tell (can be null).
+     */
+    public void setWriteListener(MemoryWriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
     /**
      * Reads the value of the given memory address.
      *
@@ -25,6 +40,9 @@ public class RamChip extends MemoryMappedChip {
      * @param value   the value to write to the given address.
      */
     public void writeMemory(int address, int value) {
+        if ((writeListener != null) && (mem[address] != value)) {
+            writeListener.memoryWritten(address);
+        }
         mem[address] = value;
     }
 }
@@ -0,0 +1,477 @@
+package emu.attackufo.sound;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.audio.AudioDevice;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Writes samples to the audio device on a dedicated thread. The emulation
+ * thread hands the samples over through a SampleRingBuffer, and never waits for
+ * the audio device. If the ring buffer is full, the block of samples is
+ * dropped, which is counted as an overrun. If the audio device runs out of
+ * samples to play, that is counted as an underrun. While the output thread is
+ * waiting for samples, it is parked until write() wakes it, so it doesn't use
+ * any CPU when the sound is muted or the Machine is paused.
+ *
+ * The buffer depth is the number of samples that are allowed to build up in
+ * the ring buffer before the audio device starts playing them, both at the
+ * start and after an underrun. A deeper buffer absorbs more variation in
+ * timing, at the cost of more latency. It can be changed at any time, and in
+ * the automatic mode it is doubled after each underrun, and then halved again
+ * after a long enough period without one, but never back down to a depth that
+ * has already underrun. It therefore settles on the smallest depth that stays
+ * underrun free on the host.
+ *
+ * @author Lance Ewing
+ */
+public class AudioOutput implements Runnable {
+
+    /**
+     * The smallest buffer depth, in samples.
+     */
+    public static final int MIN_BUFFER_DEPTH = 256;
+
+    /**
+     * The largest buffer depth, in samples.
+     */
+    public static final int MAX_BUFFER_DEPTH = 16384;
+
+    /**
+     * The default buffer depth, in samples.
+     */
+    public static final int DEFAULT_BUFFER_DEPTH = 2048;
+
+    /**
+     * The shortest time that waitForFill parks for before checking the ring
+     * buffer again.
+     */
+    private static final long MIN_FILL_WAIT_NANOS = 250000L;
+
+    /**
+     * If the audio device has been out of samples for longer than this before more
+     * arrive, then the samples stopped deliberately, e.g. because the Machine was
+     * paused or the sound muted, so it isn't counted as an underrun.
+     */
+    private static final long MAX_UNDERRUN_NANOS = 250000000L;
+
+    /**
+     * In the automatic mode, how long the buffer depth must go without an underrun
+     * before a smaller depth is tried.
+     */
+    private static final long AUTO_SHRINK_NANOS = 120000000000L;
+
+    /**
+     * The period over which the underruns per minute are counted.
+     */
+    private static final long UNDERRUN_RATE_PERIOD_NANOS = 60000000000L;
+
+    /**
+     * Controls how quickly the averages respond to change. Each new value has a
+     * weight of 1 / 2^AVERAGE_SHIFT.
+     */
+    private static final int AVERAGE_SHIFT = 4;
+
+    /**
+     * The audio device that the samples are written to.
+     */
+    private final AudioDevice audioDevice;
+
+    /**
+     * The samples waiting to be written to the audio device. This is big enough
+     * for the largest buffer depth, with the same again to spare.
+     */
+    private final SampleRingBuffer ringBuffer;
+
+    /**
+     * The output thread's block of samples that is written to the audio device.
+     */
+    private final short[] block;
+
+    /**
+     * The nanoseconds per sample, as played by the audio device.
+     */
+    private final double nanosPerSample;
+
+    /**
+     * The thread that writes the samples to the audio device.
+     */
+    private final Thread outputThread;
+
+    private volatile boolean running;
+
+    /**
+     * The ring buffer fill that wakes the output thread, or 0 if it isn't waiting
+     * for samples. While it is waiting, it is parked, so it uses no CPU when the
+     * samples stop, e.g. while the Machine is paused or the sound is muted.
+     */
+    private volatile int wakeFill;
+
+    /**
+     * The number of samples to build up before the audio device starts playing.
+     */
+    private volatile int bufferDepth;
+
+    /**
+     * Whether the buffer depth is chosen automatically.
+     */
+    private volatile boolean autoBufferDepth;
+
+    // State of the output thread. The audio device is modelled as playing the
+    // samples at the sample rate, from when they're written to it, so that it is
+    // known when it will run out.
+    private boolean playing;
+    private long deviceEmptyTime;
+    private boolean underrunPending;
+    private int failedBufferDepth;
+    private long bufferDepthChangeTime;
+    private long underrunPeriodStart;
+    private long underrunPeriodStartCount;
+
+    // Metrics. Each is only written by one thread, but may be read by others.
+    private volatile long samplesOutput;
+    private volatile long underrunCount;
+    private volatile long overrunCount;
+    private volatile float underrunsPerMinute;
+    private volatile long avgWriteTime;
+    private volatile long totalWriteTime;
+    private volatile long avgOutputLatency;
+
+    /**
+     * Constructor for AudioOutput. This creates the audio device, and starts the
+     * output thread.
+     *
+     * @param sampleRate      The sample rate of the audio device.
+     * @param bufferDepth     The number of samples to build up before the audio
+     *                        device starts playing.
+     * @param autoBufferDepth true if the buffer depth should be chosen
+     *                        automatically, starting at the given depth.
+     * @param blockSize       The number of samples written to the audio device at
+     *                        a time.
+     */
+    public AudioOutput(int sampleRate, int bufferDepth, boolean autoBufferDepth, int blockSize) {
+        audioDevice = Gdx.audio.newAudioDevice(sampleRate, true);
+        ringBuffer = new SampleRingBuffer(MAX_BUFFER_DEPTH * 2);
+        block = new short[blockSize];
+        nanosPerSample = 1000000000.0 / sampleRate;
+        setBufferDepth(bufferDepth);
+        this.autoBufferDepth = autoBufferDepth;
+
+        running = true;
+        outputThread = new Thread(this, "AudioOutput");
+        outputThread.setDaemon(true);
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        outputThread.start();
+    }
+
+    /**
+     * Hands a block of samples over to the output thread. This never waits. If
+     * there isn't room in the ring buffer, then the block is dropped.
+     *
+     * @param samples The array holding the samples.
+     * @param offset  The offset of the first sample in the array.
+     * @param length  The number of samples.
+     *
+     * @return true if the samples were accepted; false if they were dropped.
+     */
+    public boolean write(short[] samples, int offset, int length) {
+        if (ringBuffer.write(samples, offset, length)) {
+            int fill = wakeFill;
+            if ((fill > 0) && (ringBuffer.getFill() >= fill)) {
+                LockSupport.unpark(outputThread);
+            }
+            return true;
+        } else {
+            overrunCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the number of samples in the ring buffer is no more than the
+     * given level. Used to pace the emulation by the audio device's sample clock.
+     *
+     * @param fill The level to wait for.
+     */
+    public void waitForFill(int fill) {
+        int excess;
+        while (running && ((excess = ringBuffer.getFill() - fill) > 0)) {
+            // Wait for about as long as the audio device takes to play the excess.
+            LockSupport.parkNanos(Math.max(MIN_FILL_WAIT_NANOS, (long) (excess * nanosPerSample)));
+        }
+    }
+
+    /**
+     * Writes the samples from the ring buffer to the audio device until shut
+     * down. The writes to the audio device block while its buffers are full.
+     */
+    public void run() {
+        long now = TimeUtils.nanoTime();
+        bufferDepthChangeTime = now;
+        underrunPeriodStart = now;
+
+        while (running) {
+            now = TimeUtils.nanoTime();
+            int fill = ringBuffer.getFill();
+            updateUnderrunRate(now);
+
+            if (playing && (now >= deviceEmptyTime)) {
+                // The audio device has played everything written to it. Whether this was an
+                // underrun depends on how soon more samples arrive.
+                playing = false;
+                underrunPending = true;
+            }
+
+            if (!playing) {
+                if (underrunPending) {
+                    if (fill == 0) {
+                        // Whether this was an underrun depends on when the first sample arrives.
+                        waitForSamples(1, 0L);
+                        continue;
+                    }
+                    underrunPending = false;
+                    if ((samplesOutput > 0) && ((now - deviceEmptyTime) < MAX_UNDERRUN_NANOS)) {
+                        underrunOccurred(now);
+                    }
+                }
+
+                // Build the samples back up to the buffer depth before playing again.
+                if (fill < bufferDepth) {
+                    waitForSamples(bufferDepth, 0L);
+                    continue;
+                }
+                playing = true;
+                deviceEmptyTime = now;
+
+            } else if (autoBufferDepth) {
+                tryShrinkBufferDepth(now);
+            }
+
+            int count = ringBuffer.read(block, 0, block.length);
+            if (count == 0) {
+                // The audio device is still playing, so wait until either more samples
+                // arrive or it runs out.
+                waitForSamples(1, deviceEmptyTime - now);
+                continue;
+            }
+
+            try {
+                audioDevice.writeSamples(block, 0, count);
+            } catch (Throwable e) {
+                // An Exception or Error can occur here if the app is closing, so we catch and
+                // ignore.
+            }
+            long writeEnd = TimeUtils.nanoTime();
+            long writeTime = writeEnd - now;
+
+            deviceEmptyTime += (long) (count * nanosPerSample);
+            if (writeTime > (long) ((count * nanosPerSample) / 2)) {
+                // The write blocked, so the audio device's buffers are now full.
+                deviceEmptyTime = Math.max(deviceEmptyTime,
+                        writeEnd + (long) (audioDevice.getLatency() * nanosPerSample));
+            }
+
+            samplesOutput += count;
+            totalWriteTime += writeTime;
+            avgWriteTime += ((writeTime - avgWriteTime) >> AVERAGE_SHIFT);
+
+            // The latency of a sample handed over now is the time until the audio device
+            // has played everything before it.
+            long outputLatency = (deviceEmptyTime - writeEnd) + (long) (ringBuffer.getFill() * nanosPerSample);
+            avgOutputLatency += ((outputLatency - avgOutputLatency) >> AVERAGE_SHIFT);
+        }
+
+        audioDevice.dispose();
+    }
+
+    /**
+     * Parks the output thread until the ring buffer holds at least the given
+     * number of samples, the timeout expires, or it is woken for some other
+     * reason, e.g. a shutdown or a change of buffer depth. write() wakes it when
+     * the fill is reached, so it doesn't poll while waiting.
+     *
+     * @param fill         The ring buffer fill to wait for.
+     * @param timeoutNanos The longest time to wait, or 0 to wait indefinitely.
+     */
+    private void waitForSamples(int fill, long timeoutNanos) {
+        wakeFill = fill;
+
+        // The fill is checked again after wakeFill is set, in case the samples arrived
+        // before write() could see it, since write() wouldn't have unparked the thread.
+        if (running && (ringBuffer.getFill() < fill)) {
+            if (timeoutNanos > 0) {
+                LockSupport.parkNanos(timeoutNanos);
+            } else if (timeoutNanos == 0) {
+                LockSupport.park();
+            }
+        }
+        wakeFill = 0;
+    }
+
+    /**
+     * Counts an underrun, and in the automatic mode, doubles the buffer depth.
+     *
+     * @param now The current time.
+     */
+    private void underrunOccurred(long now) {
+        underrunCount++;
+
+        if (autoBufferDepth && (bufferDepth < MAX_BUFFER_DEPTH)) {
+            failedBufferDepth = Math.max(failedBufferDepth, bufferDepth);
+            bufferDepth = Math.min(MAX_BUFFER_DEPTH, bufferDepth * 2);
+            bufferDepthChangeTime = now;
+        }
+    }
+
+    /**
+     * In the automatic mode, halves the buffer depth if there hasn't been an
+     * underrun for long enough, as long as the smaller depth hasn't already
+     * underrun.
+     *
+     * @param now The current time.
+     */
+    private void tryShrinkBufferDepth(long now) {
+        int smallerDepth = bufferDepth / 2;
+        if (((now - bufferDepthChangeTime) > AUTO_SHRINK_NANOS) && (smallerDepth >= MIN_BUFFER_DEPTH)
+                && (smallerDepth > failedBufferDepth)) {
+            bufferDepth = smallerDepth;
+            bufferDepthChangeTime = now;
+        }
+    }
+
+    /**
+     * Updates the number of underruns per minute, once per minute.
+     *
+     * @param now The current time.
+     */
+    private void updateUnderrunRate(long now) {
+        long period = now - underrunPeriodStart;
+        if (period >= UNDERRUN_RATE_PERIOD_NANOS) {
+            underrunsPerMinute = (float) (((underrunCount - underrunPeriodStartCount) * 60000000000.0) / period);
+            underrunPeriodStart = now;
+            underrunPeriodStartCount = underrunCount;
+        }
+    }
+
+    /**
+     * Stops the output thread, which then disposes of the audio device.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(outputThread);
+    }
+
+    /**
+     * Sets the number of samples to build up before the audio device starts
+     * playing, both at the start and after an underrun. In the automatic mode,
+     * this is where the search for the smallest depth continues from.
+     *
+     * @param bufferDepth The buffer depth in samples.
+     */
+    public void setBufferDepth(int bufferDepth) {
+        this.bufferDepth = Math.max(MIN_BUFFER_DEPTH, Math.min(MAX_BUFFER_DEPTH, bufferDepth));
+
+        // The output thread may be waiting for the fill to reach the old depth.
+        if (outputThread != null) {
+            LockSupport.unpark(outputThread);
+        }
+    }
+
+    /**
+     * @return the number of samples to build up before the audio device starts
+     *         playing.
+     */
+    public int getBufferDepth() {
+        return bufferDepth;
+    }
+
+    /**
+     * Sets whether the buffer depth is chosen automatically.
+     *
+     * @param autoBufferDepth true to choose the buffer depth automatically.
+     */
+    public void setAutoBufferDepth(boolean autoBufferDepth) {
+        this.autoBufferDepth = autoBufferDepth;
+    }
+
+    /**
+     * @return true if the buffer depth is chosen automatically.
+     */
+    public boolean isAutoBufferDepth() {
+        return autoBufferDepth;
+    }
+
+    /**
+     * @return the number of samples currently waiting in the ring buffer.
+     */
+    public int getFill() {
+        return ringBuffer.getFill();
+    }
+
+    /**
+     * @return the number of samples that the ring buffer can hold.
+     */
+    public int getCapacity() {
+        return ringBuffer.getCapacity();
+    }
+
+    /**
+     * @return the latency of the audio device itself, in samples.
+     */
+    public int getDeviceLatency() {
+        return audioDevice.getLatency();
+    }
+
+    /**
+     * @return the total number of samples written to the audio device.
+     */
+    public long getSamplesOutput() {
+        return samplesOutput;
+    }
+
+    /**
+     * @return the number of times that the audio device ran out of samples.
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * @return the number of underruns during the last full minute.
+     */
+    public float getUnderrunsPerMinute() {
+        return underrunsPerMinute;
+    }
+
+    /**
+     * @return the number of blocks of samples dropped because the ring buffer was
+     *         full.
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /**
+     * @return the average time in nanoseconds of each write to the audio device,
+     *         which includes any time spent waiting for room in its buffers.
+     */
+    public long getAvgWriteTime() {
+        return avgWriteTime;
+    }
+
+    /**
+     * @return the total time in nanoseconds spent writing to the audio device.
+     */
+    public long getTotalWriteTime() {
+        return totalWriteTime;
+    }
+
+    /**
+     * @return the average measured output latency in nanoseconds, i.e. the time
+     *         between a sample being handed over and the audio device playing it.
+     */
+    public long getAvgOutputLatency() {
+        return avgOutputLatency;
+    }
+}
@@ -0,0 +1,152 @@
+package emu.attackufo.sound;
+
+/**
+ * A low pass FIR filter that reduces the sample rate by a whole number factor.
+ * Since only one in every factor samples is kept, the filter is only evaluated
+ * for the kept samples, which is the efficient polyphase form of decimation.
+ * The cost is therefore a fixed number of multiply adds per output sample, and
+ * nothing is allocated after construction.
+ * 
+ * The coefficients are a windowed sinc, using a Kaiser window.
+ * 
+ * @author Lance Ewing
+ */
+public class DecimationFilter {
+
+    /**
+     * The factor by which the sample rate is reduced.
+     */
+    private final int factor;
+
+    /**
+     * The number of taps in the filter.
+     */
+    private final int taps;
+
+    /**
+     * The filter coefficients, which sum to 1 so that the gain at DC is 1.
+     */
+    private final float[] coefficients;
+
+    /**
+     * The most recent input samples. Each sample is stored twice, a whole filter
+     * length apart, so that the most recent taps samples are always contiguous.
+     */
+    private final float[] history;
+
+    /**
+     * Where the next input sample is stored in the history.
+     */
+    private int historyPosition;
+
+    /**
+     * Counts the input samples up to the factor, to know when an output is due.
+     */
+    private int phase;
+
+    /**
+     * The most recent output sample.
+     */
+    private float output;
+
+    /**
+     * Constructor for DecimationFilter.
+     * 
+     * @param factor The factor by which the sample rate is reduced.
+     * @param taps   The number of taps in the filter.
+     * @param cutoff The cutoff frequency, as a fraction of the output sample rate.
+     * @param beta   The Kaiser window's beta, which trades the stop band
+     *               attenuation against the width of the transition band.
+     */
+    public DecimationFilter(int factor, int taps, double cutoff, double beta) {
+        this.factor = factor;
+        this.taps = taps;
+        this.coefficients = new float[taps];
+        this.history = new float[taps * 2];
+
+        // The cutoff as a fraction of the input sample rate.
+        double inputCutoff = cutoff / factor;
+        double centre = (taps - 1) / 2.0;
+        double[] values = new double[taps];
+        double sum = 0;
+
+        for (int i = 0; i < taps; i++) {
+            double x = i - centre;
+            double sinc = (x == 0 ? 1.0 : Math.sin(2 * Math.PI * inputCutoff * x) / (2 * Math.PI * inputCutoff * x));
+            double position = (2.0 * i / (taps - 1)) - 1.0;
+            double window = besselI0(beta * Math.sqrt(1.0 - (position * position))) / besselI0(beta);
+            values[i] = sinc * window;
+            sum += values[i];
+        }
+
+        for (int i = 0; i < taps; i++) {
+            coefficients[i] = (float) (values[i] / sum);
+        }
+    }
+
+    /**
+     * Adds an input sample to the filter.
+     * 
+     * @param sample The input sample.
+     * 
+     * @return true if an output sample is ready, which can be got from getOutput.
+     */
+    public boolean addSample(float sample) {
+        history[historyPosition] = sample;
+        history[historyPosition + taps] = sample;
+        if (++historyPosition == taps) {
+            historyPosition = 0;
+        }
+
+        if (++phase < factor) {
+            return false;
+        }
+        phase = 0;
+
+        // The coefficients are symmetric, so the order in which they are applied to the
+        // history doesn't matter.
+        float sum = 0;
+        for (int i = 0, j = historyPosition; i < taps; i++, j++) {
+            sum += coefficients[i] * history[j];
+        }
+        output = sum;
+
+        return true;
+    }
+
+    /**
+     * @return the most recent output sample.
+     */
+    public float getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the factor by which the sample rate is reduced.
+     */
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * Calculates the zeroth order modified Bessel function of the first kind, as
+     * used by the Kaiser window.
+     * 
+     * @param x The value to calculate the function for.
+     * 
+     * @return The value of the function.
+     */
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < (sum * 1e-12)) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
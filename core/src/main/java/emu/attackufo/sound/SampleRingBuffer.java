@@ -0,0 +1,113 @@
+package emu.attackufo.sound;
+
+/**
+ * A lock free ring buffer of 16-bit samples, for handing samples over from a
+ * single producer thread to a single consumer thread. The read and write
+ * positions only ever increase, and each is only written by one thread. The
+ * capacity is a power of two, so that a position is turned into an index by
+ * masking. All the storage is allocated up front.
+ * 
+ * @author Lance Ewing
+ */
+public class SampleRingBuffer {
+
+    /**
+     * The samples held in the ring buffer.
+     */
+    private final short[] samples;
+
+    /**
+     * Mask that turns a position into an index into the samples array.
+     */
+    private final int mask;
+
+    /**
+     * The total number of samples written. Only written by the producer.
+     */
+    private volatile long writePosition;
+
+    /**
+     * The total number of samples read. Only written by the consumer.
+     */
+    private volatile long readPosition;
+
+    /**
+     * Constructor for SampleRingBuffer.
+     * 
+     * @param minCapacity The minimum number of samples that the ring buffer must
+     *                    hold. This is rounded up to a power of two.
+     */
+    public SampleRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        samples = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Writes a block of samples to the ring buffer, if there is room for all of
+     * them. Only the producer thread should call this.
+     * 
+     * @param source The array holding the samples.
+     * @param offset The offset of the first sample in the array.
+     * @param length The number of samples to write.
+     * 
+     * @return true if the samples were written; false if there wasn't room.
+     */
+    public boolean write(short[] source, int offset, int length) {
+        long write = writePosition;
+        if ((samples.length - (int) (write - readPosition)) < length) {
+            return false;
+        }
+
+        // The block may wrap around the end of the array.
+        int start = (int) (write & mask);
+        int firstPart = Math.min(length, samples.length - start);
+        System.arraycopy(source, offset, samples, start, firstPart);
+        System.arraycopy(source, offset + firstPart, samples, 0, length - firstPart);
+
+        // Updating the volatile position publishes the samples to the consumer.
+        writePosition = write + length;
+        return true;
+    }
+
+    /**
+     * Reads as many samples as are available, up to the given length. Only the
+     * consumer thread should call this.
+     * 
+     * @param destination The array to read the samples in to.
+     * @param offset      The offset in the array to read the first sample in to.
+     * @param maxLength   The maximum number of samples to read.
+     * 
+     * @return The number of samples read, which is 0 if the ring buffer is empty.
+     */
+    public int read(short[] destination, int offset, int maxLength) {
+        long read = readPosition;
+        int length = Math.min(maxLength, (int) (writePosition - read));
+        if (length <= 0) {
+            return 0;
+        }
+
+        int start = (int) (read & mask);
+        int firstPart = Math.min(length, samples.length - start);
+        System.arraycopy(samples, start, destination, offset, firstPart);
+        System.arraycopy(samples, 0, destination, offset + firstPart, length - firstPart);
+
+        // Updating the volatile position gives the space back to the producer.
+        readPosition = read + length;
+        return length;
+    }
+
+    /**
+     * @return the number of samples currently in the ring buffer.
+     */
+    public int getFill() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * @return the number of samples that the ring buffer can hold.
+     */
+    public int getCapacity() {
+        return samples.length;
+    }
+}
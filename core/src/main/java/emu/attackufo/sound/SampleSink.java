@@ -0,0 +1,18 @@
+package emu.attackufo.sound;
+
+/**
+ * Something that blocks of 16-bit samples can be written to.
+ * 
+ * @author Lance Ewing
+ */
+public interface SampleSink {
+
+    /**
+     * Writes a block of samples.
+     * 
+     * @param samples The array holding the samples.
+     * @param offset  The offset of the first sample in the array.
+     * @param length  The number of samples.
+     */
+    void writeSamples(short[] samples, int offset, int length);
+}
@@ -0,0 +1,124 @@
+package emu.attackufo.sound;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Renders a SoundRegisterLog back into samples, at any sample rate. A VicSound
+ * with no audio device is set up with the state of the voices at the start of
+ * the log, and then run from one logged register write to the next, jumping
+ * straight from each sub-sample to the next rather than clocking every cycle.
+ * This runs many times faster than real time, and since each render has its
+ * own VicSound, several logs can be rendered in parallel.
+ *
+ * @author Lance Ewing
+ */
+public class SoundLogRenderer {
+
+    /**
+     * Renders a sound register log into samples.
+     *
+     * @param log        The bytes of the log.
+     * @param sampleRate The sample rate to render at.
+     * @param sink       Where the samples are written to, in blocks.
+     *
+     * @return The number of samples rendered.
+     */
+    public static long render(byte[] log, int sampleRate, SampleSink sink) {
+        SoundRegisterLog.Reader reader = new SoundRegisterLog.Reader(log);
+        int cyclesPerSecond = (int) reader.readVarint();
+
+        VicSound sound = new VicSound(cyclesPerSecond, sampleRate, sink);
+        sound.restoreState(reader);
+
+        while (true) {
+            long cycles = reader.readVarint();
+            int register = reader.readByte();
+            sound.emulateCycles(cycles);
+
+            if (register == SoundRegisterLog.END) {
+                break;
+            } else if (register == SoundRegisterLog.MASTER_VOLUME) {
+                sound.setMasterVolume(reader.readByte());
+            } else {
+                sound.writeVoiceRegister(register, reader.readByte());
+            }
+        }
+
+        return sound.flush();
+    }
+
+    /**
+     * Renders a sound register log file into a WAV file.
+     *
+     * @param logFile    The sound register log file.
+     * @param sampleRate The sample rate to render at.
+     * @param wavFile    The WAV file to write. If it exists, it is replaced.
+     *
+     * @return The number of samples rendered.
+     */
+    public static long render(FileHandle logFile, int sampleRate, FileHandle wavFile) {
+        byte[] log = logFile.readBytes();
+        WavWriter wavWriter = new WavWriter(wavFile, sampleRate);
+        try {
+            return render(log, sampleRate, wavWriter);
+        } finally {
+            wavWriter.close();
+        }
+    }
+
+    /**
+     * Renders several sound register log files into WAV files in parallel, and
+     * waits for them all to finish.
+     *
+     * @param logFiles   The sound register log files.
+     * @param wavFiles   The WAV files to write, one for each log file.
+     * @param sampleRate The sample rate to render at.
+     * @param threads    The number of logs to render at the same time.
+     *
+     * @return The total number of samples rendered.
+     */
+    public static long renderAll(FileHandle[] logFiles, FileHandle[] wavFiles, final int sampleRate, int threads) {
+        if (logFiles.length != wavFiles.length) {
+            throw new IllegalArgumentException("There must be a WAV file for each log file.");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Long>> renders = new ArrayList<Future<Long>>();
+            for (int i = 0; i < logFiles.length; i++) {
+                final FileHandle logFile = logFiles[i];
+                final FileHandle wavFile = wavFiles[i];
+                renders.add(executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        return render(logFile, sampleRate, wavFile);
+                    }
+                }));
+            }
+
+            long totalSamples = 0;
+            for (int i = 0; i < renders.size(); i++) {
+                try {
+                    totalSamples += renders.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new GdxRuntimeException("Couldn't render " + logFiles[i], e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GdxRuntimeException("Rendering interrupted", e);
+                }
+            }
+            return totalSamples;
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package emu.attackufo.sound;
+
+import java.util.Arrays;
+
+/**
+ * A compact log of the writes to the VIC sound registers, i.e. VIC registers 10
+ * to 14, each stamped with the cycle that it happened on. Only writes that
+ * change a voice register or the master volume are logged, so a whole session
+ * is usually only a few kilobytes. Together with the state of the voices when
+ * the log started, this is all that is needed to render the sound again, at any
+ * sample rate, which is what the SoundLogRenderer does.
+ *
+ * The format is:
+ *
+ * <pre>
+ * "VSL1"                        Magic number and version.
+ * varint  cyclesPerSecond       The machine's clock rate.
+ * byte[4] voiceRegisters        VIC registers 10 to 13.
+ * byte    masterVolume          The bottom 4 bits of VIC register 14.
+ * varint  reloadCycles[4]       Cycles until each voice's next counter reload.
+ * byte[4] voiceShiftRegisters
+ * varint  noiseLFSR
+ * byte    lastNoiseLFSR0
+ *
+ * Then a record for each write:
+ *
+ * varint  cycles                Cycles since the previous record.
+ * byte    register              0 to 3 for the voices, 4 for the master volume,
+ *                               or 0xFF for the end of the log.
+ * byte    value                 Not present for the end of the log.
+ * </pre>
+ *
+ * A varint is 7 bits per byte, least significant first, with the top bit set
+ * on every byte except the last.
+ *
+ * The log is appended to by the emulation thread, and can be copied out by any
+ * other thread at any time.
+ *
+ * @author Lance Ewing
+ */
+public class SoundRegisterLog {
+
+    /**
+     * The magic number and version at the start of every log.
+     */
+    private static final byte[] MAGIC = { 'V', 'S', 'L', '1' };
+
+    /**
+     * The register number of the master volume in a record.
+     */
+    static final int MASTER_VOLUME = 4;
+
+    /**
+     * The register number of the record that marks the end of the log.
+     */
+    static final int END = 0xFF;
+
+    /**
+     * The initial capacity of the log, in bytes.
+     */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * The bytes of the log. When this grows, the bytes are copied to the new array
+     * before it is published.
+     */
+    private volatile byte[] data;
+
+    /**
+     * The number of bytes of the log. This is only updated once a whole record is
+     * in the data, which publishes the record to other threads.
+     */
+    private volatile int size;
+
+    /**
+     * Where the next byte is written. Only used by the emulation thread.
+     */
+    private int position;
+
+    /**
+     * The cycle of the last record.
+     */
+    private long lastCycle;
+
+    /**
+     * Constructor for SoundRegisterLog. The log starts with the given state of
+     * the voices.
+     *
+     * @param cyclesPerSecond     The machine's clock rate.
+     * @param voiceRegisters      The values of VIC registers 10 to 13.
+     * @param masterVolume        The master volume.
+     * @param reloadCycles        The cycles until each voice's next counter
+     *                            reload.
+     * @param voiceShiftRegisters The voices' shift registers.
+     * @param noiseLFSR           The noise voice's LFSR.
+     * @param lastNoiseLFSR0      The previous bit 0 of the noise voice's LFSR.
+     * @param startCycle          The cycle that the log starts on.
+     */
+    SoundRegisterLog(int cyclesPerSecond, int[] voiceRegisters, int masterVolume, long[] reloadCycles,
+            int[] voiceShiftRegisters, int noiseLFSR, int lastNoiseLFSR0, long startCycle) {
+        data = new byte[INITIAL_CAPACITY];
+        lastCycle = startCycle;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            writeByte(MAGIC[i]);
+        }
+        writeVarint(cyclesPerSecond);
+        for (int i = 0; i < 4; i++) {
+            writeByte(voiceRegisters[i]);
+        }
+        writeByte(masterVolume);
+        for (int i = 0; i < 4; i++) {
+            writeVarint(reloadCycles[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            writeByte(voiceShiftRegisters[i]);
+        }
+        writeVarint(noiseLFSR);
+        writeByte(lastNoiseLFSR0);
+        size = position;
+    }
+
+    /**
+     * Logs a write to a sound register. Only the emulation thread should call
+     * this.
+     *
+     * @param cycle    The cycle that the write happened on.
+     * @param register 0 to 3 for the voices, or MASTER_VOLUME.
+     * @param value    The value written.
+     */
+    void logWrite(long cycle, int register, int value) {
+        writeVarint(cycle - lastCycle);
+        writeByte(register);
+        writeByte(value);
+        lastCycle = cycle;
+        size = position;
+    }
+
+    /**
+     * Copies the log so far, and adds the end record to the copy.
+     *
+     * @param endCycle The cycle that the log ends on. If this is before the last
+     *                 record, then the log ends on the last record.
+     *
+     * @return The bytes of the log.
+     */
+    public byte[] toByteArray(long endCycle) {
+        // The size is read first, since any newer data array also holds those bytes.
+        int logSize = size;
+        byte[] logData = data;
+
+        byte[] bytes = Arrays.copyOf(logData, logSize + 11);
+        int length = putVarint(bytes, logSize, Math.max(0, endCycle - lastCycle));
+        bytes[length++] = (byte) END;
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Writes a byte to the log, growing it if needed.
+     *
+     * @param value The byte to write.
+     */
+    private void writeByte(int value) {
+        if (position == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a varint to the log.
+     *
+     * @param value The value to write, which must not be negative.
+     */
+    private void writeVarint(long value) {
+        while (value >= 0x80) {
+            writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * Puts a varint into a byte array.
+     *
+     * @param bytes    The byte array.
+     * @param position Where to put the varint.
+     * @param value    The value to put, which must not be negative.
+     *
+     * @return The position after the varint.
+     */
+    private static int putVarint(byte[] bytes, int position, long value) {
+        while (value >= 0x80) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads a SoundRegisterLog from its bytes.
+     */
+    static class Reader {
+
+        private final byte[] bytes;
+        private int position;
+
+        /**
+         * Constructor for Reader, which checks the magic number.
+         *
+         * @param bytes The bytes of the log.
+         */
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+            for (int i = 0; i < MAGIC.length; i++) {
+                if ((bytes.length <= i) || (bytes[i] != MAGIC[i])) {
+                    throw new IllegalArgumentException("Not a sound register log.");
+                }
+            }
+            position = MAGIC.length;
+        }
+
+        /**
+         * @return the next byte, as an unsigned value.
+         */
+        int readByte() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Sound register log is truncated.");
+            }
+            return (bytes[position++] & 0xFF);
+        }
+
+        /**
+         * @return the next varint.
+         */
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= ((long) (b & 0x7F)) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
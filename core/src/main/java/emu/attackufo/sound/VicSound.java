@@ -0,0 +1,832 @@
+package emu.attackufo.sound;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+import emu.attackufo.MachineType;
+
+/**
+ * This class emulates the sound generation part of the VIC chip, i.e. the three
+ * square wave voices, the noise voice, and the master volume. It is clocked
+ * once per machine cycle by the VIC, whether or not the VIC is rendering that
+ * frame, so that skipping the rendering of frames doesn't affect the sound.
+ * 
+ * The voices are not stepped every cycle. Each voice's counter is clocked
+ * every 16, 8, 4 or 2 cycles, and its shift register only changes when the
+ * counter wraps around and is reloaded from the voice register. The cycle of
+ * the next reload can therefore be worked out in advance, and the voices are
+ * only brought up to date when a sample is due, or just before a voice
+ * register is written. The output is identical to stepping every cycle.
+ * 
+ * Rather than point sampling the voices, which aliases badly given that they
+ * are square waves and noise, the output of each voice is integrated exactly
+ * over each sub-sample period, at several times the output sample rate. The
+ * sub-samples are then low pass filtered and decimated to the output rate.
+ * 
+ * The samples are handed over to an AudioOutput, which writes them to the
+ * audio device on its own thread, so the emulation never waits for the device.
+ * The AudioOutput is opened when the first block of samples is ready, and is
+ * reopened if the sample rate is changed, so both the sample rate and the
+ * buffer depth can be changed at any time.
+ * 
+ * @author Lance Ewing
+ */
+public class VicSound {
+
+    /**
+     * The default output sample rate.
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    /**
+     * The number of sub-samples per output sample.
+     */
+    private static final int OVERSAMPLING = 4;
+
+    // The decimation filter's design. A cutoff of 0.45 of the output rate, with a
+    // transition band of about 0.18 of the output rate, means that anything that
+    // aliases is folded back above 0.46 of the output rate, i.e. above 20 kHz at
+    // 44.1 kHz.
+    private static final int FILTER_TAPS = 96;
+    private static final double FILTER_CUTOFF = 0.45;
+    private static final double FILTER_BETA = 7.0;
+
+    /**
+     * The output level of a single voice when its output bit is high, before the
+     * master volume is applied. With all four voices high and the master volume at
+     * 15, this gives the same peak level as before the output was filtered.
+     */
+    private static final float VOICE_LEVEL = 2048 >> 2;
+
+    /**
+     * The sample rate that the sound is output at.
+     */
+    private int sampleRate;
+
+    /**
+     * The sample rate to change to at the end of the current block of samples.
+     */
+    private volatile int requestedSampleRate;
+
+    /**
+     * The number of cycles per second of the machine.
+     */
+    private int cyclesPerSecond;
+
+    /**
+     * The ratio applied to the number of cycles per sub-sample.
+     */
+    private double sampleRateRatio = 1.0;
+
+    /**
+     * The ratio to change to at the end of the current block of samples. This is
+     * set by other threads, so is only applied between blocks by the thread that
+     * is generating the samples.
+     */
+    private volatile double requestedSampleRateRatio = 1.0;
+
+    /**
+     * The buffer depth of the audio output, in samples.
+     */
+    private volatile int bufferDepth = AudioOutput.DEFAULT_BUFFER_DEPTH;
+
+    /**
+     * Whether the audio output chooses its buffer depth automatically.
+     */
+    private volatile boolean autoBufferDepth;
+
+    /**
+     * The current values of the four voice registers, i.e. VIC registers 10 to
+     * 13. The top bit enables the voice, and the bottom 7 bits set its frequency.
+     */
+    private int[] voiceRegisters;
+
+    /**
+     * Master volume for all of the VIC chip voices.
+     */
+    private int masterVolume;
+
+    /**
+     * The number of cycles per sub-sample, as a 16.16 fixed point number. The
+     * fractional part matters, since it is what keeps the sample rate exact, and
+     * therefore the emulation speed exact when it is paced by the audio clock.
+     */
+    private int cyclesPerSubSample;
+    private int baseCyclesPerSubSample;
+    private int cyclesToNextSubSample;
+    private long samplesWritten;
+    private short[] sampleBuffer;
+    private int sampleBufferOffset = 0;
+    private volatile AudioOutput audioOutput;
+    private boolean audioOutputFailed;
+    private volatile boolean disposed;
+
+    /**
+     * Records the samples to a WAV file, if a recording is in progress.
+     */
+    private final AtomicReference<WavRecorder> recorder = new AtomicReference<WavRecorder>();
+
+    /**
+     * Where the samples go when rendering offline, in which case there is no
+     * AudioOutput. Otherwise null.
+     */
+    private SampleSink sampleSink;
+
+    /**
+     * Logs the writes to the sound registers, if a log is in progress.
+     */
+    private volatile SoundRegisterLog registerLog;
+
+    /**
+     * Set when a sound register log should be started at the end of the current
+     * block of samples.
+     */
+    private volatile boolean registerLogRequested;
+
+    /**
+     * The cycle count at the end of the last block of samples, for other threads
+     * to read.
+     */
+    private volatile long blockCycleCount;
+    private boolean soundPaused;
+
+    /**
+     * The number of cycles that have been clocked. The sound clock divider, a
+     * 4-bit counter that is incremented every cycle, is the bottom 4 bits of this.
+     */
+    private long cycleCount;
+
+    /**
+     * The number of cycles between each clock of each voice's counter. A voice is
+     * clocked when the bits of the sound clock divider in its trigger mask, i.e.
+     * 0xF, 0x7, 0x3 and 0x1, are all zero.
+     */
+    private int[] voiceClockPeriods;
+
+    /**
+     * The cycle at which each voice's counter will next wrap around to zero and be
+     * reloaded, which is when its shift register is shifted.
+     */
+    private long[] voiceReloadCycles;
+
+    private int[] voiceShiftRegisters;
+
+    /**
+     * The time, in 16.16 fixed point cycles, that the voices have been brought up
+     * to date to.
+     */
+    private long voicesUpdateTime;
+
+    /**
+     * The time, in 16.16 fixed point cycles, of the last sub-sample.
+     */
+    private long subSampleTime;
+
+    /**
+     * The total time, in 16.16 fixed point cycles, that each voice's output has
+     * been high since the last sub-sample.
+     */
+    private long[] voiceHighTimes;
+
+    /**
+     * Low pass filters the sub-samples and decimates them to the output rate.
+     */
+    private DecimationFilter decimationFilter;
+
+    private int noiseLFSR = 0xFFFF;
+    private int lastNoiseLFSR0 = 0x1;
+
+    /**
+     * Constructor for VicSound, which outputs at the default sample rate.
+     * 
+     * @param machineType The type of machine, PAL or NTSC.
+     */
+    public VicSound(MachineType machineType) {
+        this(machineType.getCyclesPerSecond(), DEFAULT_SAMPLE_RATE, null);
+    }
+
+    /**
+     * Constructor for VicSound.
+     * 
+     * @param cyclesPerSecond The number of cycles per second of the machine.
+     * @param sampleRate      The sample rate to output at.
+     * @param sampleSink      Where to write the samples when rendering offline,
+     *                        or null to output to the audio device.
+     */
+    VicSound(int cyclesPerSecond, int sampleRate, SampleSink sampleSink) {
+        this.cyclesPerSecond = cyclesPerSecond;
+        this.requestedSampleRate = sampleRate;
+        this.sampleSink = sampleSink;
+        applySampleRate();
+
+        cyclesToNextSubSample = cyclesPerSubSample;
+        voiceHighTimes = new long[4];
+        decimationFilter = new DecimationFilter(OVERSAMPLING, FILTER_TAPS, FILTER_CUTOFF, FILTER_BETA);
+
+        voiceRegisters = new int[4];
+        voiceShiftRegisters = new int[4];
+        voiceClockPeriods = new int[] { 16, 8, 4, 2 };
+
+        // The voice counters start at zero, so the first reload is after 128 clocks.
+        voiceReloadCycles = new long[4];
+        for (int i = 0; i < 4; i++) {
+            voiceReloadCycles[i] = 128L * voiceClockPeriods[i];
+        }
+    }
+
+    /**
+     * Writes to one of the four voice registers, i.e. VIC registers 10 to 13.
+     * 
+     * @param voice The voice number, 0 to 3, where 3 is the noise voice.
+     * @param value The value written to the register.
+     */
+    public void writeVoiceRegister(int voice, int value) {
+        // Writing the same value again has no effect.
+        if (value == voiceRegisters[voice]) {
+            return;
+        }
+
+        // Reloads up to now must use the old value.
+        updateVoices(cycleCount << 16);
+        voiceRegisters[voice] = value;
+
+        SoundRegisterLog log = registerLog;
+        if (log != null) {
+            log.logWrite(cycleCount, voice, value);
+        }
+    }
+
+    /**
+     * Sets the master volume, i.e. the bottom 4 bits of VIC register 14.
+     * 
+     * @param masterVolume The master volume, from 0 to 15.
+     */
+    public void setMasterVolume(int masterVolume) {
+        if (masterVolume != this.masterVolume) {
+            this.masterVolume = masterVolume;
+
+            SoundRegisterLog log = registerLog;
+            if (log != null) {
+                log.logWrite(cycleCount, SoundRegisterLog.MASTER_VOLUME, masterVolume);
+            }
+        }
+    }
+
+    /**
+     * Emulates a single machine cycle of the sound generation. The voices are only
+     * brought up to date if a sub-sample is due.
+     */
+    public void emulateCycle() {
+        cycleCount++;
+
+        // If enough cycles have elapsed since the last sub-sample, then output another.
+        if ((cyclesToNextSubSample -= 0x10000) <= 0) {
+            // The sub-sample is due part way through this cycle.
+            writeSubSample((cycleCount << 16) + cyclesToNextSubSample);
+            cyclesToNextSubSample += cyclesPerSubSample;
+        }
+    }
+
+    /**
+     * Emulates the given number of machine cycles of the sound generation, jumping
+     * straight from one sub-sample to the next. This is the same as calling
+     * emulateCycle that many times, but much faster.
+     * 
+     * @param cycles The number of cycles to emulate.
+     */
+    void emulateCycles(long cycles) {
+        while (cycles > 0) {
+            // The number of cycles until the next sub-sample is due.
+            long cyclesToDue = (cyclesToNextSubSample + 0xFFFF) >> 16;
+            if (cyclesToDue > cycles) {
+                cycleCount += cycles;
+                cyclesToNextSubSample -= (int) (cycles << 16);
+                return;
+            }
+
+            cycleCount += cyclesToDue;
+            cyclesToNextSubSample -= (int) (cyclesToDue << 16);
+            cycles -= cyclesToDue;
+            writeSubSample((cycleCount << 16) + cyclesToNextSubSample);
+            cyclesToNextSubSample += cyclesPerSubSample;
+        }
+    }
+
+    /**
+     * Writes out the samples in the sample buffer, even though it isn't full.
+     * This is used at the end of an offline render.
+     * 
+     * @return The total number of samples written.
+     */
+    long flush() {
+        if ((sampleSink != null) && (sampleBufferOffset > 0)) {
+            sampleSink.writeSamples(sampleBuffer, 0, sampleBufferOffset);
+            samplesWritten += sampleBufferOffset;
+            sampleBufferOffset = 0;
+        }
+        return samplesWritten;
+    }
+
+    /**
+     * Restores the state of the voices from the start of a sound register log.
+     * The cycle count is expected to be zero, as it is for a new VicSound.
+     * 
+     * @param reader The reader of the log, positioned after the clock rate.
+     */
+    void restoreState(SoundRegisterLog.Reader reader) {
+        for (int i = 0; i < 4; i++) {
+            voiceRegisters[i] = reader.readByte();
+        }
+        masterVolume = reader.readByte();
+        for (int i = 0; i < 4; i++) {
+            voiceReloadCycles[i] = cycleCount + reader.readVarint();
+        }
+        for (int i = 0; i < 4; i++) {
+            voiceShiftRegisters[i] = reader.readByte();
+        }
+        noiseLFSR = (int) reader.readVarint();
+        lastNoiseLFSR0 = reader.readByte();
+    }
+
+    /**
+     * Creates a SoundRegisterLog that starts with the current state of the voices.
+     * 
+     * @return The new SoundRegisterLog.
+     */
+    private SoundRegisterLog createRegisterLog() {
+        // Bring the voices up to date, so that every reload cycle is in the future.
+        updateVoices(cycleCount << 16);
+
+        long[] reloadCycles = new long[4];
+        for (int i = 0; i < 4; i++) {
+            reloadCycles[i] = voiceReloadCycles[i] - cycleCount;
+        }
+        return new SoundRegisterLog(cyclesPerSecond, voiceRegisters, masterVolume, reloadCycles,
+                voiceShiftRegisters, noiseLFSR, lastNoiseLFSR0, cycleCount);
+    }
+
+    /**
+     * Brings the state of all four voices up to date with the given time, by
+     * performing each counter reload that has happened since they were last
+     * updated, and adds up how long each voice's output has been high.
+     * 
+     * @param time The time to update to, in 16.16 fixed point cycles.
+     */
+    private void updateVoices(long time) {
+        for (int i = 0; i < 4; i++) {
+            long reloadCycle = voiceReloadCycles[i];
+            long segmentStart = voicesUpdateTime;
+
+            if ((reloadCycle << 16) <= time) {
+                // The counter counts up from the reload value and wraps around after 0x7F, so
+                // a reload value of 0 gives the longest period. The voice register can't have
+                // changed since the last update, so the period is the same for every reload.
+                int reloadValue = (voiceRegisters[i] & 0x7F);
+                long reloadPeriod = (long) (128 - reloadValue) * voiceClockPeriods[i];
+
+                while ((reloadCycle << 16) <= time) {
+                    if (isVoiceIdle(i)) {
+                        // Nothing changes on a reload, and the output is low, so skip straight
+                        // past the given time.
+                        reloadCycle += (((time >> 16) - reloadCycle) / reloadPeriod + 1) * reloadPeriod;
+                        break;
+                    }
+                    if (isVoiceHigh(i)) {
+                        voiceHighTimes[i] += (reloadCycle << 16) - segmentStart;
+                    }
+                    segmentStart = (reloadCycle << 16);
+                    reloadVoice(i);
+                    reloadCycle += reloadPeriod;
+                }
+
+                voiceReloadCycles[i] = reloadCycle;
+            }
+
+            if (isVoiceHigh(i)) {
+                voiceHighTimes[i] += time - segmentStart;
+            }
+        }
+
+        voicesUpdateTime = time;
+    }
+
+    /**
+     * Tests whether the output of the given voice is currently high, i.e. the
+     * voice is enabled and the first bit of its shift register is set.
+     * 
+     * @param i The voice number, 0 to 3.
+     * 
+     * @return true if the output of the voice is high.
+     */
+    private boolean isVoiceHigh(int i) {
+        return (((voiceRegisters[i] & 0x80) != 0) && ((voiceShiftRegisters[i] & 0x01) != 0));
+    }
+
+    /**
+     * Tests whether reloading the given voice's counter would leave the state of
+     * the voice unchanged. This is the case when the voice is disabled and zeroes
+     * have been shifted all the way through its shift register, or for the noise
+     * voice, when ones have been shifted all the way through the LFSR.
+     * 
+     * @param i The voice number, 0 to 3.
+     * 
+     * @return true if a reload would not change the state of the voice.
+     */
+    private boolean isVoiceIdle(int i) {
+        if ((voiceRegisters[i] & 0x80) != 0) {
+            return false;
+        } else if (i == 3) {
+            return ((noiseLFSR == 0xFFFF) && (lastNoiseLFSR0 == 1));
+        } else {
+            return (voiceShiftRegisters[i] == 0);
+        }
+    }
+
+    /**
+     * Performs what happens when the given voice's counter wraps around and is
+     * reloaded from the voice register.
+     * 
+     * @param i The voice number, 0 to 3.
+     */
+    private void reloadVoice(int i) {
+        if (i == 3) {
+            // For Noise voice, we perform a shift of the LFSR whenever the counter is
+            // reloaded, and only shift the main voice shift register when LFSR bit 0
+            // changes from LOW to HIGH, i.e. on the positive edge.
+            if ((lastNoiseLFSR0 == 0) && (noiseLFSR & 0x0001) > 0) {
+                voiceShiftRegisters[i] = (((voiceShiftRegisters[i] & 0x7F) << 1)
+                        | ((voiceRegisters[i] & 0x80) > 0 ? (((voiceShiftRegisters[i] & 0x80) >> 7) ^ 1) : 0));
+            }
+
+            // The LFSR taps are bits 3, 12, 14 and 15.
+            int bit3 = (noiseLFSR >> 3) & 1;
+            int bit12 = (noiseLFSR >> 12) & 1;
+            int bit14 = (noiseLFSR >> 14) & 1;
+            int bit15 = (noiseLFSR >> 15) & 1;
+            int feedback = (((bit3 ^ bit12) ^ (bit14 ^ bit15)) ^ 1);
+            lastNoiseLFSR0 = (noiseLFSR & 0x1);
+            noiseLFSR = (((noiseLFSR << 1) | (((feedback & ((voiceRegisters[i] & 0x80) >> 7)) ^ 1) & 0x1)) & 0xFFFF);
+
+        } else {
+            // For the three other voices, we shift the voice shift register whenever the
+            // counter is reloaded.
+            voiceShiftRegisters[i] = (((voiceShiftRegisters[i] & 0x7F) << 1)
+                    | ((voiceRegisters[i] & 0x80) > 0 ? (((voiceShiftRegisters[i] & 0x80) >> 7) ^ 1) : 0));
+        }
+    }
+
+    /**
+     * Writes a single sub-sample, which is the average output level over the time
+     * since the last sub-sample, to the decimation filter. If that produces an
+     * output sample, then it is written to the sample buffer.
+     * 
+     * @param time The time of the sub-sample, in 16.16 fixed point cycles.
+     */
+    private void writeSubSample(long time) {
+        updateVoices(time);
+
+        long highTime = voiceHighTimes[0] + voiceHighTimes[1] + voiceHighTimes[2] + voiceHighTimes[3];
+        voiceHighTimes[0] = voiceHighTimes[1] = voiceHighTimes[2] = voiceHighTimes[3] = 0;
+        float level = (highTime * VOICE_LEVEL * masterVolume) / (time - subSampleTime);
+        subSampleTime = time;
+
+        if (decimationFilter.addSample(level)) {
+            // The filter can overshoot slightly on sharp edges.
+            float output = decimationFilter.getOutput();
+            writeSample((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(output))));
+        }
+    }
+
+    /**
+     * Writes a single sample to the sample buffer. If the buffer is full after
+     * writing the sample, then the whole buffer is written out.
+     * 
+     * @param sample The sample to write.
+     */
+    private void writeSample(short sample) {
+        sampleBuffer[sampleBufferOffset] = sample;
+
+        // If the sample buffer is full, hand it over to the audio output. This never
+        // waits. If the output's ring buffer is full, the samples are dropped.
+        if ((sampleBufferOffset += 1) == sampleBuffer.length) {
+            if (sampleSink != null) {
+                // Rendering offline, so there is no audio output.
+                sampleSink.writeSamples(sampleBuffer, 0, sampleBuffer.length);
+                samplesWritten += sampleBuffer.length;
+                sampleBufferOffset = 0;
+                return;
+            }
+
+            // The register log is only started between blocks, on this thread, so that
+            // the state of the voices that it starts with is consistent.
+            if (registerLogRequested) {
+                registerLogRequested = false;
+                registerLog = createRegisterLog();
+            }
+            blockCycleCount = cycleCount;
+
+            // The recording includes the samples generated while muted.
+            WavRecorder currentRecorder = recorder.get();
+            if (currentRecorder != null) {
+                currentRecorder.write(sampleBuffer, 0, sampleBuffer.length);
+            }
+
+            if (!soundPaused) {
+                if ((audioOutput == null) && !audioOutputFailed) {
+                    openAudioOutput();
+                }
+                if ((audioOutput != null) && audioOutput.write(sampleBuffer, 0, sampleBuffer.length)) {
+                    samplesWritten += sampleBuffer.length;
+                }
+            }
+            sampleBufferOffset = 0;
+
+            // A change of sample rate is only applied between blocks. A recording can't
+            // change sample rate part way through, so it is stopped.
+            if (requestedSampleRate != sampleRate) {
+                // Closing the recording doesn't wait for the file to be finished.
+                WavRecorder stoppedRecorder = recorder.getAndSet(null);
+                if (stoppedRecorder != null) {
+                    stoppedRecorder.close();
+                }
+                closeAudioOutput();
+                applySampleRate();
+            } else if (requestedSampleRateRatio != sampleRateRatio) {
+                sampleRateRatio = requestedSampleRateRatio;
+                cyclesPerSubSample = (int) Math.round(baseCyclesPerSubSample * sampleRateRatio);
+            }
+        }
+    }
+
+    /**
+     * Opens the AudioOutput, which creates the audio device. If the audio device
+     * can't be created, then sound output stays off until the sample rate is
+     * changed.
+     */
+    private void openAudioOutput() {
+        if (disposed) {
+            return;
+        }
+        try {
+            audioOutput = new AudioOutput(sampleRate, bufferDepth, autoBufferDepth, sampleBuffer.length);
+        } catch (GdxRuntimeException e) {
+            audioOutput = null;
+            audioOutputFailed = true;
+        }
+    }
+
+    /**
+     * Closes the AudioOutput, if it is open, which releases the audio device.
+     */
+    private void closeAudioOutput() {
+        AudioOutput output = audioOutput;
+        if (output != null) {
+            // Carry the automatically chosen depth over to the next AudioOutput.
+            bufferDepth = output.getBufferDepth();
+            output.shutdown();
+            audioOutput = null;
+        }
+        audioOutputFailed = false;
+    }
+
+    /**
+     * Applies the requested sample rate, which sets up the cycles per sub-sample
+     * and the sample buffer for that rate.
+     */
+    private void applySampleRate() {
+        sampleRate = requestedSampleRate;
+        sampleRateRatio = requestedSampleRateRatio;
+        baseCyclesPerSubSample = (int) (((long) cyclesPerSecond << 16) / (sampleRate * OVERSAMPLING));
+        cyclesPerSubSample = (int) Math.round(baseCyclesPerSubSample * sampleRateRatio);
+
+        // The sample buffer holds 10ms of samples.
+        sampleBuffer = new short[sampleRate / 100];
+        sampleBufferOffset = 0;
+    }
+
+    /**
+     * Starts recording the samples to a 16-bit PCM WAV file, at the current sample
+     * rate. Any recording already in progress is stopped first.
+     * 
+     * @param file The file to record to. If it exists, it is replaced.
+     */
+    public void startRecording(FileHandle file) {
+        stopRecording();
+        finishRecording(recorder.getAndSet(new WavRecorder(file, sampleRate)));
+    }
+
+    /**
+     * Stops the recording in progress, if there is one, and waits for the WAV
+     * file to be finished off. This should not be called on the emulation thread.
+     */
+    public void stopRecording() {
+        finishRecording(recorder.getAndSet(null));
+    }
+
+    /**
+     * Closes the given recording, and waits for its WAV file to be finished off.
+     * Whichever thread takes a recorder out of the recorder reference closes it,
+     * so each recording is closed exactly once, and no lock is held while waiting.
+     * 
+     * @param stoppedRecorder The WavRecorder to close, or null if there isn't one.
+     */
+    private void finishRecording(WavRecorder stoppedRecorder) {
+        if (stoppedRecorder != null) {
+            stoppedRecorder.close();
+            stoppedRecorder.awaitClosed();
+        }
+    }
+
+    /**
+     * Gets the WavRecorder of the recording in progress, which holds the
+     * recording metrics.
+     * 
+     * @return The WavRecorder, or null if there isn't a recording in progress.
+     */
+    public WavRecorder getRecorder() {
+        return recorder.get();
+    }
+
+    /**
+     * Starts logging the writes to the sound registers. The log starts at the end
+     * of the current block of samples. Any log already in progress carries on.
+     */
+    public void startRegisterLog() {
+        if (registerLog == null) {
+            registerLogRequested = true;
+        }
+    }
+
+    /**
+     * Stops logging the writes to the sound registers.
+     * 
+     * @return The bytes of the log, or null if a log hadn't started.
+     */
+    public byte[] stopRegisterLog() {
+        registerLogRequested = false;
+        SoundRegisterLog log = registerLog;
+        registerLog = null;
+        return (log != null ? log.toByteArray(blockCycleCount) : null);
+    }
+
+    /**
+     * Sets the sample rate that the sound is output at. This is applied at the
+     * end of the current block of samples, when the audio device is reopened at
+     * the new rate.
+     * 
+     * @param sampleRate The sample rate in Hz, normally 44100 or 48000.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 8000) {
+            throw new IllegalArgumentException("Sample rate is too low: " + sampleRate);
+        }
+        this.requestedSampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the number of samples that the audio output builds up before the audio
+     * device starts playing. Deeper buffers are more robust, but add latency.
+     * 
+     * @param bufferDepth The buffer depth in samples.
+     */
+    public void setBufferDepth(int bufferDepth) {
+        this.bufferDepth = bufferDepth;
+        AudioOutput output = audioOutput;
+        if (output != null) {
+            output.setBufferDepth(bufferDepth);
+        }
+    }
+
+    /**
+     * Gets the number of samples that the audio output builds up before the audio
+     * device starts playing. In the automatic mode, this is the depth that it has
+     * currently chosen.
+     * 
+     * @return The buffer depth in samples.
+     */
+    public int getBufferDepth() {
+        AudioOutput output = audioOutput;
+        return (output != null ? output.getBufferDepth() : bufferDepth);
+    }
+
+    /**
+     * Sets whether the audio output chooses its buffer depth automatically, i.e.
+     * the smallest depth that stays free of underruns.
+     * 
+     * @param autoBufferDepth true to choose the buffer depth automatically.
+     */
+    public void setAutoBufferDepth(boolean autoBufferDepth) {
+        this.autoBufferDepth = autoBufferDepth;
+        AudioOutput output = audioOutput;
+        if (output != null) {
+            output.setAutoBufferDepth(autoBufferDepth);
+        }
+    }
+
+    /**
+     * @return true if the audio output chooses its buffer depth automatically.
+     */
+    public boolean isAutoBufferDepth() {
+        return autoBufferDepth;
+    }
+
+    /**
+     * Mutes and unmutes the sound output. Samples continue to be generated while
+     * muted, but are not written to the audio device.
+     * 
+     * @param soundPaused true to mute the sound, false to unmute it.
+     */
+    public void setSoundPaused(boolean soundPaused) {
+        this.soundPaused = soundPaused;
+    }
+
+    /**
+     * Scales the number of cycles per sub-sample by the given ratio. This is used
+     * when the emulation is running slightly faster or slower than real time, so
+     * that the sample rate in real time still matches the audio device. The ratio
+     * is applied at the end of the current block of samples, so this can be called
+     * from any thread.
+     * 
+     * @param sampleRateRatio The ratio to apply. 1.0 is the normal rate.
+     */
+    public void setSampleRateRatio(double sampleRateRatio) {
+        this.requestedSampleRateRatio = sampleRateRatio;
+    }
+
+    /**
+     * Gets the sample rate that the sound is output at.
+     * 
+     * @return The sample rate in Hz.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Gets the total number of samples that have been written to the audio
+     * output, which then writes them to the audio device.
+     * 
+     * @return The total number of samples written to the audio output.
+     */
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    /**
+     * Gets the latency of the audio output, as the number of samples that it can
+     * hold in normal running. This is twice the buffer depth, since the buffer
+     * depth is aimed for, plus what the audio device's buffers hold.
+     * 
+     * @return The latency of the audio output in samples, or 0 if there isn't one.
+     */
+    public int getAudioLatency() {
+        AudioOutput output = audioOutput;
+        return (output != null ? (output.getBufferDepth() * 2) + output.getDeviceLatency() : 0);
+    }
+
+    /**
+     * Returns whether sound is currently being output to an audio device.
+     * 
+     * @return true if there is an audio device and sound is not muted.
+     */
+    public boolean isSoundOutputActive() {
+        return ((audioOutput != null) && !soundPaused && !disposed);
+    }
+
+    /**
+     * Waits until the audio output's ring buffer holds no more than the buffer
+     * depth. This paces the emulation by the audio device's sample clock, and is
+     * only waited for between frames, never part way through one.
+     */
+    public void waitForAudioOutput() {
+        AudioOutput output = audioOutput;
+        if (output != null) {
+            output.waitForFill(output.getBufferDepth());
+        }
+    }
+
+    /**
+     * Gets the AudioOutput, which holds the buffer fill, underrun and overrun
+     * metrics.
+     * 
+     * @return The AudioOutput, or null if it isn't open, e.g. before the first
+     *         block of samples, or if there is no audio device.
+     */
+    public AudioOutput getAudioOutput() {
+        return audioOutput;
+    }
+
+    /**
+     * Stops any recording, and the audio output, which releases the audio device.
+     */
+    public void dispose() {
+        disposed = true;
+        stopRecording();
+        AudioOutput output = audioOutput;
+        if (output != null) {
+            output.shutdown();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package emu.attackufo.sound;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Records the VIC sample stream to a 16-bit mono PCM WAV file. The emulation
+ * thread only hands each block of samples over through a SampleRingBuffer. A
+ * background thread writes them to the file with a WavWriter, which buffers
+ * them in large blocks, and patches the WAV header when the recording is
+ * closed.
+ *
+ * @author Lance Ewing
+ */
+public class WavRecorder implements Runnable {
+
+    /**
+     * The size of the ring buffer, in samples. This is several seconds' worth, so
+     * that the writer thread can fall well behind before samples are dropped.
+     */
+    private static final int RING_BUFFER_SIZE = 262144;
+
+    /**
+     * The number of samples that the writer thread takes from the ring buffer at
+     * a time.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * How long the writer thread waits before checking the ring buffer again when
+     * it is empty.
+     */
+    private static final long EMPTY_WAIT_NANOS = 10000000L;
+
+    /**
+     * How long awaitClosed waits for the writer thread to finish the file.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The file being recorded to.
+     */
+    private final FileHandle file;
+
+    /**
+     * The sample rate of the recording.
+     */
+    private final int sampleRate;
+
+    /**
+     * The samples waiting to be written to the file.
+     */
+    private final SampleRingBuffer ringBuffer;
+
+    /**
+     * Writes the samples to the file. Only used by the writer thread once started.
+     */
+    private final WavWriter wavWriter;
+
+    /**
+     * The thread that writes the samples to the file.
+     */
+    private final Thread writerThread;
+
+    private volatile boolean closing;
+
+    // Metrics. Each is only written by one thread, but may be read by others.
+    private volatile long samplesRecorded;
+    private volatile long droppedCount;
+    private volatile boolean failed;
+
+    /**
+     * Constructor for WavRecorder. This creates the file, and starts the writer
+     * thread.
+     *
+     * @param file       The file to record to. If it exists, it is replaced.
+     * @param sampleRate The sample rate of the samples that will be recorded.
+     */
+    public WavRecorder(FileHandle file, int sampleRate) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.ringBuffer = new SampleRingBuffer(RING_BUFFER_SIZE);
+        this.wavWriter = new WavWriter(file, sampleRate);
+
+        writerThread = new Thread(this, "WavRecorder");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * Hands a block of samples over to the writer thread. This never waits. If
+     * the writer thread has fallen so far behind that there isn't room in the
+     * ring buffer, then the block is dropped.
+     *
+     * @param samples The array holding the samples.
+     * @param offset  The offset of the first sample in the array.
+     * @param length  The number of samples.
+     */
+    public void write(short[] samples, int offset, int length) {
+        if (!ringBuffer.write(samples, offset, length)) {
+            droppedCount++;
+        }
+    }
+
+    /**
+     * Writes the samples from the ring buffer to the file until closed, and then
+     * finishes off the file.
+     */
+    public void run() {
+        short[] chunk = new short[CHUNK_SIZE];
+
+        try {
+            while (true) {
+                // Once closing, keep going until the ring buffer has been drained.
+                boolean finalPass = closing;
+                int count = ringBuffer.read(chunk, 0, chunk.length);
+
+                if (count == 0) {
+                    if (finalPass) {
+                        break;
+                    }
+                    LockSupport.parkNanos(EMPTY_WAIT_NANOS);
+                    continue;
+                }
+
+                wavWriter.writeSamples(chunk, 0, count);
+                samplesRecorded += count;
+            }
+        } catch (GdxRuntimeException e) {
+            failed = true;
+        }
+
+        try {
+            wavWriter.close();
+        } catch (GdxRuntimeException e) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Stops recording. This never waits. The writer thread writes out the
+     * remaining samples, patches the header and closes the file in the
+     * background, so this can be called from the emulation thread.
+     */
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Waits for the writer thread to finish the file after close, e.g. so that
+     * the file is complete before the app exits. This can take a while if the
+     * writer thread has fallen behind, so it should never be called from the
+     * emulation thread.
+     */
+    public void awaitClosed() {
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the file being recorded to.
+     */
+    public FileHandle getFile() {
+        return file;
+    }
+
+    /**
+     * @return the sample rate of the recording.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the number of samples written to the file so far.
+     */
+    public long getSamplesRecorded() {
+        return samplesRecorded;
+    }
+
+    /**
+     * @return the number of blocks of samples dropped because the writer thread
+     *         had fallen too far behind.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return true if writing to the file failed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+}
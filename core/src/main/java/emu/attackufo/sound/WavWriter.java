@@ -0,0 +1,169 @@
+package emu.attackufo.sound;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Writes 16-bit mono PCM samples to a WAV file. The samples are converted to
+ * little endian bytes in a large buffer, which is written to a FileChannel
+ * whenever it fills. The sizes in the WAV header aren't known until the end,
+ * so the header is written with sizes of zero, and then patched when the file
+ * is closed. The writes happen on the calling thread.
+ * 
+ * @author Lance Ewing
+ */
+public class WavWriter implements SampleSink {
+
+    /**
+     * The size of the WAV header, in bytes.
+     */
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * The size of the buffer that is written to the FileChannel, in bytes.
+     */
+    private static final int WRITE_BUFFER_SIZE = 262144;
+
+    /**
+     * The sample rate of the samples.
+     */
+    private final int sampleRate;
+
+    /**
+     * The file, opened for random access, so that the header can be patched at
+     * the end.
+     */
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    /**
+     * The samples converted to bytes, waiting to be written to the FileChannel.
+     */
+    private final ByteBuffer writeBuffer;
+
+    /**
+     * The number of bytes of sample data written to the FileChannel so far.
+     */
+    private long dataSize;
+
+    private long samplesWritten;
+
+    /**
+     * Constructor for WavWriter. This creates the file, and writes a header with
+     * sizes of zero.
+     * 
+     * @param file       The file to write to. If it exists, it is replaced.
+     * @param sampleRate The sample rate of the samples.
+     */
+    public WavWriter(FileHandle file, int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            file.parent().mkdirs();
+            randomAccessFile = new RandomAccessFile(file.file(), "rw");
+            randomAccessFile.setLength(0);
+            channel = randomAccessFile.getChannel();
+            writeHeader();
+            channel.position(HEADER_SIZE);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't create WAV file " + file, e);
+        }
+    }
+
+    /**
+     * Writes a block of samples.
+     * 
+     * @param samples The array holding the samples.
+     * @param offset  The offset of the first sample in the array.
+     * @param length  The number of samples.
+     */
+    public void writeSamples(short[] samples, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (!writeBuffer.hasRemaining()) {
+                flush();
+            }
+            writeBuffer.putShort(samples[i]);
+        }
+        samplesWritten += length;
+    }
+
+    /**
+     * Writes out any buffered samples, patches the header with the final sizes,
+     * and closes the file.
+     */
+    public void close() {
+        try {
+            flush();
+            writeHeader();
+            channel.force(false);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't finish WAV file", e);
+        } finally {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing more can be done.
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples written so far.
+     */
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    /**
+     * Writes the contents of the write buffer to the end of the file.
+     */
+    private void flush() {
+        writeBuffer.flip();
+        dataSize += writeBuffer.remaining();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write WAV file", e);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Writes the WAV header at the start of the file, for 16-bit mono PCM with the
+     * size of sample data written so far.
+     * 
+     * @throws IOException If the write fails.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt((int) (dataSize + HEADER_SIZE - 8));
+        header.put(new byte[] { 'W', 'A', 'V', 'E' });
+        header.put(new byte[] { 'f', 'm', 't', ' ' });
+        header.putInt(16);
+        header.putShort((short) 1);
+        header.putShort((short) 1);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * 2);
+        header.putShort((short) 2);
+        header.putShort((short) 16);
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt((int) dataSize);
+        header.flip();
+
+        // Positional writes don't move the channel's position.
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+}
@@ -83,6 +83,10 @@ public class MachineInputProcessor extends InputAdapter {
      * @return whether the input was processed
      */
     public boolean keyDown(int keycode) {
+        if (keycode == Keys.TAB) {
+            // Turbo mode is on while the TAB key is held down.
+            machineScreen.getMachineRunnable().setTurbo(true);
+        }
         machineScreen.getMachine().getJoystick().keyPressed(keycode);
         return true;
     }
@@ -95,6 +99,9 @@ public class MachineInputProcessor extends InputAdapter {
      * @return whether the input was processed
      */
     public boolean keyUp(int keycode) {
+        if (keycode == Keys.TAB) {
+            machineScreen.getMachineRunnable().setTurbo(false);
+        }
         machineScreen.getMachine().getJoystick().keyReleased(keycode);
         return true;
     }
@@ -0,0 +1,206 @@
+package emu.attackufo.video;
+
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.utils.BufferUtils;
+
+/**
+ * Represents the data for one VIC frame.
+ * 
+ * @author Lance Ewing
+ */
+public class Frame {
+
+    /**
+     * The width of the tile data, i.e. the number of bytes per row when it is
+     * uploaded as a texture.
+     */
+    public static final int TILE_DATA_WIDTH = 256;
+
+    /**
+     * The height of the tile data, i.e. the number of rows when it is uploaded as
+     * a texture.
+     */
+    public static final int TILE_DATA_HEIGHT = 20;
+
+    /**
+     * The maximum number of cells in the video matrix that the tile data can hold.
+     */
+    public static final int TILE_MATRIX_SIZE = 512;
+
+    /**
+     * The offset within the tile data of the cell colours. The screen codes start
+     * at offset 0.
+     */
+    public static final int TILE_COLOUR_OFFSET = 512;
+
+    /**
+     * The offset within the tile data of the glyphs, which are stored as they are
+     * in character memory, i.e. starting with the glyph for screen code 0.
+     */
+    public static final int TILE_GLYPH_OFFSET = 1024;
+
+    /**
+     * Holds the pixel data for the TV frame screen. Each pixel is a 4-bit index
+     * into the VIC palette. This is a direct buffer, so that it can be uploaded to
+     * the GPU as is, without first copying it.
+     */
+    ByteBuffer framePixels;
+
+    /**
+     * Holds a hash of the pixels in each line of the frame. These allow a
+     * consumer to tell which lines differ from a previous frame without comparing
+     * the pixels.
+     */
+    long lineHashes[];
+
+    /**
+     * The number of the frame whose character cells this Frame holds, when it was
+     * rendered a cell at a time, or -1 if it was not. Cells that have changed since
+     * that frame are all that need redrawing next time this Frame is rendered.
+     */
+    long cellFrameNumber = -1;
+
+    /**
+     * Whether this Frame holds tile data, to be drawn by the GPU, rather than
+     * pixels.
+     */
+    boolean tileFrame;
+
+    /**
+     * Holds the screen codes, cell colours and glyphs of a tile Frame, laid out as
+     * described by the TILE constants.
+     */
+    ByteBuffer tileData;
+
+    /**
+     * The number of bytes of the tile data that are in use.
+     */
+    int tileDataSize;
+
+    // The text screen area of a tile Frame, in Frame pixel coordinates, and the
+    // register values needed to draw it.
+    int tileScreenLeft;
+    int tileScreenTop;
+    int tileScreenRight;
+    int tileScreenBottom;
+    int tileColumns;
+    int tileCharacterSize;
+    int tileBackgroundColour;
+    int tileBorderColour;
+
+    /**
+     * Constructor for Frame.
+     * 
+     * @param width  The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     */
+    Frame(int width, int height) {
+        framePixels = BufferUtils.newByteBuffer(width * height);
+        lineHashes = new long[height];
+        tileData = BufferUtils.newByteBuffer(TILE_DATA_WIDTH * TILE_DATA_HEIGHT);
+    }
+
+    /**
+     * Gets the pixels of this Frame. Each pixel is a 4-bit index into the VIC
+     * palette.
+     * 
+     * @return The pixels of this Frame.
+     */
+    public ByteBuffer getFramePixels() {
+        return framePixels;
+    }
+
+    /**
+     * Gets the hashes of the pixels in each line of this Frame. If two lines have
+     * different hashes, then their pixels differ.
+     * 
+     * @return The hashes of the pixels in each line of this Frame.
+     */
+    public long[] getLineHashes() {
+        return lineHashes;
+    }
+
+    /**
+     * Returns whether this Frame holds tile data, to be drawn by the GPU, rather
+     * than pixels. If it does, then the pixels are left as they were.
+     * 
+     * @return true if this Frame holds tile data.
+     */
+    public boolean isTileFrame() {
+        return tileFrame;
+    }
+
+    /**
+     * Gets the tile data of this Frame, i.e. the screen codes, cell colours and
+     * glyphs, laid out as described by the TILE constants.
+     * 
+     * @return The tile data of this Frame.
+     */
+    public ByteBuffer getTileData() {
+        return tileData;
+    }
+
+    /**
+     * @return the number of bytes of the tile data that are in use.
+     */
+    public int getTileDataSize() {
+        return tileDataSize;
+    }
+
+    /**
+     * @return the left edge of the text screen, in Frame pixels.
+     */
+    public int getTileScreenLeft() {
+        return tileScreenLeft;
+    }
+
+    /**
+     * @return the top edge of the text screen, in Frame lines.
+     */
+    public int getTileScreenTop() {
+        return tileScreenTop;
+    }
+
+    /**
+     * @return the right edge of the text screen, in Frame pixels (exclusive).
+     */
+    public int getTileScreenRight() {
+        return tileScreenRight;
+    }
+
+    /**
+     * @return the bottom edge of the text screen, in Frame lines (exclusive).
+     */
+    public int getTileScreenBottom() {
+        return tileScreenBottom;
+    }
+
+    /**
+     * @return the number of columns in the video matrix.
+     */
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    /**
+     * @return the character height, i.e. 8 or 16.
+     */
+    public int getTileCharacterSize() {
+        return tileCharacterSize;
+    }
+
+    /**
+     * @return the background colour, as an index into the palette.
+     */
+    public int getTileBackgroundColour() {
+        return tileBackgroundColour;
+    }
+
+    /**
+     * @return the border colour, as an index into the palette.
+     */
+    public int getTileBorderColour() {
+        return tileBorderColour;
+    }
+}
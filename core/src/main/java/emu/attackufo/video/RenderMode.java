@@ -0,0 +1,33 @@
+package emu.attackufo.video;
+
+/**
+ * The ways in which the VIC can render the pixels of each Frame.
+ * 
+ * @author Lance Ewing
+ */
+public enum RenderMode {
+
+    /**
+     * Every pixel of every Frame is output as the raster passes over it, exactly
+     * as the real chip does.
+     */
+    RASTER,
+
+    /**
+     * Only the character cells whose screen code, colour or glyph has changed
+     * since a Frame was last rendered are redrawn in to that Frame, at the end of
+     * each frame. If the screen layout or colour registers are changed while a
+     * frame is being output, or a cell that the raster has already passed is
+     * changed, the VIC falls back to RASTER rendering until they have been left
+     * alone for a while, since those frames can't be drawn a cell at a time.
+     */
+    CELL,
+
+    /**
+     * As with CELL, but rather than drawing the cells, the VIC captures the
+     * screen codes, colours and glyphs that they are drawn from, and a shader
+     * draws them on the GPU. Frames that can't be captured this way, e.g. due to
+     * a mid-frame register change, are rendered on the CPU instead.
+     */
+    GPU_TILES
+}
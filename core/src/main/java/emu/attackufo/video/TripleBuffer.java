@@ -0,0 +1,198 @@
+package emu.attackufo.video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock free triple buffer for handing buffers over from a single producer
+ * thread to a single consumer thread. The producer owns the back buffer, the
+ * consumer owns the front buffer, and the third buffer sits in the middle. The
+ * index of the middle buffer, and whether it holds a fresh buffer that the
+ * consumer has not yet taken, are packed into a single AtomicInteger, so that
+ * a buffer changes hands with one atomic swap. The swap also makes everything
+ * written to the buffer before it visible to the other thread.
+ *
+ * @param <T> The type of buffer.
+ *
+ * @author Lance Ewing
+ */
+public class TripleBuffer<T> {
+
+    /**
+     * The policies for what happens when the producer publishes a buffer before
+     * the consumer has taken the previous one.
+     */
+    public enum Policy {
+
+        /**
+         * The previous buffer is dropped, and the producer carries on without
+         * waiting. The consumer always gets the latest buffer.
+         */
+        LATEST_WINS,
+
+        /**
+         * The producer waits for the consumer to take the previous buffer, so no
+         * buffer is dropped unless the consumer stops taking them altogether.
+         */
+        QUEUE_ALL
+    }
+
+    /**
+     * Mask for the index of the middle buffer within the state.
+     */
+    private static final int INDEX_MASK = 0x3;
+
+    /**
+     * Bit in the state that is set when the middle buffer is fresh, i.e. has been
+     * published but not yet taken.
+     */
+    private static final int FRESH = 0x4;
+
+    /**
+     * The longest time that the producer will wait for the consumer in QUEUE_ALL
+     * mode, before dropping the buffer anyway. This stops the producer hanging if
+     * the consumer has stopped, e.g. while the app is closing.
+     */
+    private static final long MAX_QUEUE_WAIT_NANOS = 100000000L;
+
+    /**
+     * The three buffers.
+     */
+    private final Object[] buffers;
+
+    /**
+     * The index of the middle buffer, and the FRESH bit.
+     */
+    private final AtomicInteger state;
+
+    /**
+     * The index of the buffer owned by the producer.
+     */
+    private int backIndex;
+
+    /**
+     * The index of the buffer owned by the consumer.
+     */
+    private int frontIndex;
+
+    /**
+     * What to do when the producer publishes before the consumer has taken the
+     * previous buffer.
+     */
+    private volatile Policy policy = Policy.LATEST_WINS;
+
+    // Metrics. Each is only written by one thread, but may be read by others.
+    private volatile long publishedCount;
+    private volatile long droppedCount;
+    private volatile long repeatedCount;
+
+    /**
+     * Constructor for TripleBuffer.
+     *
+     * @param back   The buffer that the producer starts with.
+     * @param middle The buffer that starts in the middle.
+     * @param front  The buffer that the consumer starts with.
+     */
+    public TripleBuffer(T back, T middle, T front) {
+        buffers = new Object[] { back, middle, front };
+        backIndex = 0;
+        state = new AtomicInteger(1);
+        frontIndex = 2;
+    }
+
+    /**
+     * Gets the buffer currently owned by the producer. Only the producer thread
+     * should call this.
+     *
+     * @return The buffer currently owned by the producer.
+     */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T) buffers[backIndex];
+    }
+
+    /**
+     * Publishes the producer's buffer to the consumer, and gives the producer a
+     * new buffer to write in to. Only the producer thread should call this.
+     *
+     * @return The new buffer owned by the producer.
+     */
+    public T publish() {
+        if (policy == Policy.QUEUE_ALL) {
+            long waitStart = System.nanoTime();
+            while (((state.get() & FRESH) != 0) && (System.nanoTime() - waitStart < MAX_QUEUE_WAIT_NANOS)) {
+                LockSupport.parkNanos(50000L);
+            }
+        }
+
+        int oldState = state.getAndSet(backIndex | FRESH);
+        if ((oldState & FRESH) != 0) {
+            // The consumer never took the previous buffer.
+            droppedCount++;
+        }
+        backIndex = (oldState & INDEX_MASK);
+        publishedCount++;
+
+        return getBack();
+    }
+
+    /**
+     * Takes the most recently published buffer, if there is one that the consumer
+     * hasn't already taken. The consumer's previous buffer is given back. Only
+     * the consumer thread should call this.
+     *
+     * @return The most recently published buffer, or null if nothing new has been
+     *         published since the last call, in which case the consumer repeats
+     *         the previous buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((state.get() & FRESH) == 0) {
+            repeatedCount++;
+            return null;
+        }
+
+        int oldState = state.getAndSet(frontIndex);
+        frontIndex = (oldState & INDEX_MASK);
+        return (T) buffers[frontIndex];
+    }
+
+    /**
+     * Sets the policy for what happens when the producer publishes before the
+     * consumer has taken the previous buffer.
+     *
+     * @param policy The Policy to use.
+     */
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return the policy
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of buffers published by the producer.
+     */
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * @return the number of published buffers that the consumer never took.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of times the consumer found nothing new, and so repeated
+     *         the previous buffer.
+     */
+    public long getRepeatedCount() {
+        return repeatedCount;
+    }
+}
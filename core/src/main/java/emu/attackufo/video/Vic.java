@@ -1,20 +1,21 @@
 package emu.attackufo.video;
 
-import com.badlogic.gdx.Gdx;
-import com.badlogic.gdx.audio.AudioDevice;
-import com.badlogic.gdx.utils.GdxRuntimeException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+import emu.attackufo.FrameCapture;
 import emu.attackufo.MachineType;
 import emu.attackufo.memory.MemoryMappedChip;
+import emu.attackufo.memory.MemoryWriteListener;
+import emu.attackufo.sound.VicSound;
 
 /**
  * This class emulates the VIC chip. The emulation is cycle based.
  * 
  * @author Lance Ewing
  */
-public class Vic extends MemoryMappedChip {
+public class Vic extends MemoryMappedChip implements MemoryWriteListener {
     
-    private static final int SAMPLE_RATE = 22050;
 
     /**
      * This is the memory location that the VIC chip reads from when outside the
@@ -33,6 +34,12 @@ public class Vic extends MemoryMappedChip {
      */
     private static final int FETCH_CHAR_DATA = 1;
 
+    /**
+     * The number of frames that are rendered by the raster after a layout or
+     * colour register is changed mid-frame, before CELL rendering is tried again.
+     */
+    private static final int RASTER_FALLBACK_FRAMES = 50;
+
     // VIC chip memory mapped registers.
     private static final int VIC_REG_0 = 0x1000;
     private static final int VIC_REG_1 = 0x1001;
@@ -71,6 +78,23 @@ public class Vic extends MemoryMappedChip {
 
     private final static short vicColours[] = palRGB565Colours;
 
+    /**
+     * The number of colours in the VIC palette.
+     */
+    public static final int PALETTE_SIZE = 16;
+
+    /**
+     * A lookup table for expanding each 4-bit palette index into four pixels'
+     * worth of that index, packed into an int.
+     */
+    private final static int colourPatterns[] = new int[16];
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            colourPatterns[i] = i * 0x01010101;
+        }
+    }
+
     /**
      * A lookup table for determining the start of video memory.
      */
@@ -104,9 +128,9 @@ public class Vic extends MemoryMappedChip {
     private int cellData;
 
     /**
-     * Last fetched cell colour.
+     * Last fetched cell colour, as an index into the palette.
      */
-    private short cellColour;
+    private byte cellColour;
 
     /**
      * Index of the cell colour into the colours array.
@@ -203,9 +227,9 @@ public class Vic extends MemoryMappedChip {
     private int fetchToggle;
 
     /**
-     * The current background colour.
+     * The current background colour, as an index into the palette.
      */
-    private short backgroundColour;
+    private byte backgroundColour;
 
     /**
      * The index of the current background colour into the colours array.
@@ -213,14 +237,40 @@ public class Vic extends MemoryMappedChip {
     private int backgroundColourIndex;
 
     /**
-     * The current border colour.
+     * The current border colour, as an index into the palette.
+     */
+    private byte borderColour;
+
+    /**
+     * The current auxiliary colour, as an index into the palette.
+     */
+    private byte auxiliaryColour;
+
+    /**
+     * The last fetched cell colour, expanded to four pixels packed into an int.
+     */
+    private int cellColourPattern;
+
+    /**
+     * Lookup table that expands each nibble of a character bitmap into four pixel
+     * masks packed into an int, i.e. 0xFF for each set bit and 0x00 for each clear
+     * bit. The byte order matches the Frame buffers, so that the leftmost pixel is
+     * at the lowest address.
      */
-    private short borderColour;
+    private int[] nibbleMasks;
 
     /**
-     * The current auxiliary colour;
+     * Lookup table that expands each nibble of a character bitmap into four pixels
+     * packed into an int, where clear bits are the background colour and set bits
+     * are zero, ready for the foreground colour to be ORed in. This depends on the
+     * background colour, so is rebuilt lazily when that changes.
      */
-    private short auxiliaryColour;
+    private int[] backgroundNibblePixels = new int[16];
+
+    /**
+     * Whether the backgroundNibblePixels table needs to be rebuilt.
+     */
+    private boolean backgroundNibblePixelsInvalid = true;
 
     /**
      * Whether the characters are reversed at present or not.
@@ -228,9 +278,9 @@ public class Vic extends MemoryMappedChip {
     private int reverse;
 
     /**
-     * Holds the current colour values of each of the multi-colour colours.
+     * Holds the current palette indexes of each of the multi-colour colours.
      */
-    private short multiColourTable[] = new short[4];
+    private byte multiColourTable[] = new byte[4];
 
     /**
      * The left hand side of th text screen.
@@ -262,89 +312,131 @@ public class Vic extends MemoryMappedChip {
      */
     private int textScreenHeight;
 
+    // The part of the raster that is stored in each Frame. Horizontal values are in
+    // pixels, and vertical values are in lines counted from the first output line.
+    private int frameLeft;
+    private int frameRight;
+    private int frameTop;
+    private int frameBottom;
+    private int frameWidth;
+    private int frameHeight;
+
     /**
-     * Master volume for all of the VIC chip voices.
+     * Whether the current line is within the part of the raster stored in each
+     * Frame.
      */
-    private int masterVolume;
+    private boolean lineInFrame;
 
     /**
-     * Represents the data for one VIC frame.
+     * The Frame that the VIC is currently writing to. This is the back buffer of
+     * the frame buffer, and is owned by the emulation thread.
      */
-    class Frame {
+    private Frame backFrame;
 
-        /**
-         * Holds the pixel data for the TV frame screen.
-         */
-        short framePixels[];
+    /**
+     * Hands completed Frames over to the consumer without locking.
+     */
+    private TripleBuffer<Frame> frameBuffer;
 
-        /**
-         * Says whether this frame is ready to be blitted to the GPU.
-         */
-        boolean ready;
-    }
+    /**
+     * Optional FrameCapture that is given each completed Frame when a capture
+     * has been requested.
+     */
+    private FrameCapture frameCapture;
 
     /**
-     * An array of two Frames, one being the one that the VIC is currently writing
-     * to, the other being the last one that was completed and ready to blit.
+     * How the pixels of each Frame are rendered. A change takes effect from the
+     * start of the next frame.
      */
-    private Frame[] frames;
+    private volatile RenderMode renderMode = RenderMode.RASTER;
 
     /**
-     * The index of the active frame within the frames. This will toggle between 0
-     * and 1.
+     * Whether the current frame is being rendered from its cells, either on the
+     * CPU or the GPU, rather than by the raster.
      */
-    private int activeFrame;
+    private boolean cellRendering;
 
-    private int cyclesPerSample;
-    private short[] sampleBuffer;
-    private int sampleBufferOffset = 0;
-    private int cyclesToNextSample;
-    private AudioDevice audioDevice;
-    private boolean soundPaused;
-    
-    private int soundClockDividerCounter;
-    private int[] voiceClockDividerTriggers;
-    private int[] voiceCounters;
-    private int[] voiceShiftRegisters;
-    
-    private int noiseLFSR = 0xFFFF;
-    private int lastNoiseLFSR0 = 0x1; 
+    /**
+     * Whether the cells of the current frame are still to be rendered.
+     */
+    private boolean cellsPending;
+
+    /**
+     * The cell frame number, which is incremented each time the cells are
+     * rendered. Changes to memory are stamped with this number.
+     */
+    private long cellFrameNumber;
+
+    /**
+     * For each memory address, the cell frame number when its contents last
+     * changed.
+     */
+    private long[] addressChangeFrames = new long[0x4000];
+
+    /**
+     * The cell frame number when a layout or colour register last changed. Frames
+     * whose cells were rendered before this need every cell redrawn.
+     */
+    private long layoutChangeFrame;
+
+    /**
+     * The number of frames left that must be rendered by the raster, following a
+     * mid-frame change to a layout or colour register.
+     */
+    private int rasterFallbackFrames;
+
+    /**
+     * Marks the lines of the Frame that were redrawn by the last cell render, so
+     * that their hashes can be updated.
+     */
+    private boolean[] linesRedrawn;
+
+    /**
+     * The number of cells redrawn the last time the cells were rendered.
+     */
+    private int cellsRedrawn;
+
+    /**
+     * The sound generation part of the VIC chip. This is clocked every cycle,
+     * including the cycles of frames whose rendering is skipped.
+     */
+    private VicSound sound;
     
     /**
      * Constructor for VIC.
      * 
-     * @param machineType The type of machine, PAL or NTSC.
+     * @param machineType       The type of machine, PAL or NTSC.
+     * @param visibleWindowOnly If true, only the pixels within the visible window
+     *                          of the MachineType are stored in each Frame.
+     *                          Otherwise the whole raster is stored.
      */
-    public Vic(MachineType machineType) {
+    public Vic(MachineType machineType, boolean visibleWindowOnly) {
         this.machineType = machineType;
 
-        this.cyclesPerSample = (machineType.getCyclesPerSecond() / SAMPLE_RATE);
-        
-        frames = new Frame[2];
-        frames[0] = new Frame();
-        frames[0].framePixels = new short[(machineType.getTotalScreenWidth() * machineType.getTotalScreenHeight())];
-        frames[0].ready = false;
-        frames[1] = new Frame();
-        frames[1].framePixels = new short[(machineType.getTotalScreenWidth() * machineType.getTotalScreenHeight())];
-        frames[1].ready = false;
+        // Lines before line 10 are never output, so the first output line is line 0.
+        if (visibleWindowOnly) {
+            frameLeft = machineType.getHorizontalOffset();
+            frameTop = machineType.getVerticalOffset();
+            frameWidth = machineType.getVisibleScreenWidth();
+            frameHeight = machineType.getVisibleScreenHeight();
+        } else {
+            frameLeft = 0;
+            frameTop = 0;
+            frameWidth = machineType.getTotalScreenWidth();
+            frameHeight = machineType.getTotalScreenHeight();
+        }
+        frameRight = frameLeft + frameWidth;
+        frameBottom = frameTop + frameHeight;
+
+        frameBuffer = new TripleBuffer<Frame>(new Frame(frameWidth, frameHeight),
+                new Frame(frameWidth, frameHeight), new Frame(frameWidth, frameHeight));
+        backFrame = frameBuffer.getBack();
+        nibbleMasks = createNibbleMasks(backFrame.framePixels.order());
+        linesRedrawn = new boolean[frameHeight];
 
         reset();
-        
-        int audioBufferSize = ((((SAMPLE_RATE/ 20) * 2) / 10) * 10);
-        sampleBuffer = new short[audioBufferSize / 10];
-        sampleBufferOffset = 0;
-        
-        try {
-          audioDevice = Gdx.audio.newAudioDevice(SAMPLE_RATE, true);
-        } catch (GdxRuntimeException e) {
-          audioDevice = null;
-        }
-        
-        cyclesToNextSample = cyclesPerSample;
-        
-        voiceCounters = new int[4];
-        voiceShiftRegisters = new int[4];
-        voiceClockDividerTriggers = new int[] { 0xF, 0x7, 0x3, 0x1 } ;
+
+        sound = new VicSound(machineType);
     }
 
     /**
@@ -363,6 +455,7 @@ public class Vic extends MemoryMappedChip {
         cellColour = 0;
         fetchToggle = FETCH_SCREEN_CODE;
         charMemoryCellDepthStart = charMemoryStart;
+        lineInFrame = false;
     }
 
     /**
@@ -462,6 +555,7 @@ public class Vic extends MemoryMappedChip {
 
         switch (address) {
         case VIC_REG_0: // $9000 Left margin, or horizontal origin (4 pixel granularity)
+            layoutRegisterWritten(address, value);
             mem[address] = value;
             horizontalScreenOrigin = (value & 0x7F);
             textScreenLeft = (horizontalScreenOrigin << 2);
@@ -469,6 +563,7 @@ public class Vic extends MemoryMappedChip {
             break;
 
         case VIC_REG_1: // $9001 Top margin, or vertical origin (2 pixel granularity)
+            layoutRegisterWritten(address, value);
             mem[address] = value;
             verticalScreenOrigin = value;
             textScreenTop = (value << 1);
@@ -476,6 +571,7 @@ public class Vic extends MemoryMappedChip {
             break;
 
         case VIC_REG_2: // $9002 Video Matrix Columns, Video and colour memory
+            layoutRegisterWritten(address, value);
             mem[VIC_REG_2] = value;
             numOfColumns = (value & 0x7f);
             textScreenWidth = (numOfColumns << 3);
@@ -485,6 +581,7 @@ public class Vic extends MemoryMappedChip {
             break;
 
         case VIC_REG_3: // $9003 Video Matrix Rows, Character size
+            layoutRegisterWritten(address, value);
             mem[address] = value;
             switch (value & 0x01) {
             case 0:
@@ -506,6 +603,7 @@ public class Vic extends MemoryMappedChip {
             break;
 
         case VIC_REG_5: // $9005 Video matrix and char generator base address control
+            layoutRegisterWritten(address, value);
             mem[address] = value;
             videoMemoryStart = videoMemoryTable[((value & 0xF0) >> 3) | ((mem[VIC_REG_2] & 0x80) >> 7)];
             charMemoryStart = charMemoryTable[value & 0x0F];
@@ -526,33 +624,39 @@ public class Vic extends MemoryMappedChip {
 
         case VIC_REG_10: // $900A Bass sound switch and frequency
             mem[address] = value;
+            sound.writeVoiceRegister(0, value);
             break;
 
         case VIC_REG_11: // $900B Alto sound switch and frequency
             mem[address] = value;
+            sound.writeVoiceRegister(1, value);
             break;
 
         case VIC_REG_12: // $900C Soprano sound switch and frequency
             mem[address] = value;
+            sound.writeVoiceRegister(2, value);
             break;
 
         case VIC_REG_13: // $900D Noise sound switch and frequency
             mem[address] = value;
+            sound.writeVoiceRegister(3, value);
             break;
 
         case VIC_REG_14: // $900E Auxiliary Colour, Master Volume
             mem[address] = value;
-            auxiliaryColour = vicColours[(value & 0xF0) >> 4];
+            auxiliaryColour = (byte) ((value & 0xF0) >> 4);
             multiColourTable[3] = auxiliaryColour;
-            masterVolume = (value & 0x0F);
+            sound.setMasterVolume(value & 0x0F);
             break;
 
         case VIC_REG_15: // $900F Screen and Border Colours, Reverse Video
+            layoutRegisterWritten(address, value);
             mem[address] = value;
             // Not sure if border colour was support in Attack UFO. No need for it.
-            borderColour = vicColours[0]; // vicColours[value & 0x07];
+            borderColour = 0; // (byte) (value & 0x07);
             backgroundColourIndex = (value & 0xF0) >> 4;
-            backgroundColour = vicColours[backgroundColourIndex];
+            backgroundColour = (byte) backgroundColourIndex;
+            backgroundNibblePixelsInvalid = true;
             multiColourTable[0] = backgroundColour;
             multiColourTable[1] = borderColour;
             // No reverse mode in Attack UFO. reverse = ((value & 0x08) == 0x08 ? 0 : 1);
@@ -560,6 +664,111 @@ public class Vic extends MemoryMappedChip {
         }
     }
 
+    /**
+     * Invoked when a write changes the contents of a RAM address that the VIC may
+     * read from, so that the character cells that use it can be redrawn. If the
+     * raster has already output a cell that uses the address, then the cells
+     * rendered at the end of the visible window would show the new contents too
+     * early, so the Frame is brought up to date with the old contents, and the
+     * rest of it is rendered by the raster, as for a layout register change.
+     * 
+     * @param address The address whose contents are changing.
+     */
+    public void memoryWritten(int address) {
+        if (cellRendering && cellsPending && cellAlreadyOutput(address)) {
+            fallBackToRaster();
+        }
+        addressChangeFrames[address] = cellFrameNumber;
+    }
+
+    /**
+     * Returns whether the raster has already output, in the current frame, any
+     * line of a character cell that reads the given address. Addresses within
+     * the video matrix or colour matrix belong to a single cell row, whereas a
+     * glyph may be used by any cell, so is treated as output as soon as the first
+     * row has started.
+     * 
+     * @param address The address to check.
+     * 
+     * @return true if a cell that reads the address has already been output.
+     */
+    private boolean cellAlreadyOutput(int address) {
+        int firstOutputLine = Math.max(Math.max(textScreenTop, 10), frameTop + 10);
+        if (verticalCounter < firstOutputLine) {
+            return false;
+        }
+
+        int firstLine = Math.max(textScreenTop, 10);
+        int lastLine = Math.min(textScreenBottom, Math.min(machineType.getTotalScreenHeight(), frameBottom + 10));
+        if ((firstLine >= lastLine) || (numOfColumns == 0)) {
+            return false;
+        }
+        if (((address - charMemoryStart) & 0x3FFF) < (256 << characterSizeShift)) {
+            return true;
+        }
+
+        // The cells are laid out as in renderCells.
+        int cells = ((lastLine - firstLine + characterSize - 1) >> characterSizeShift) * numOfColumns;
+        int matrixOffset = address - videoMemoryStart;
+        if ((matrixOffset < 0) || (matrixOffset >= cells)) {
+            matrixOffset = address - colourMemoryStart;
+            if ((matrixOffset < 0) || (matrixOffset >= cells)) {
+                return false;
+            }
+        }
+        int rowTop = firstLine + ((matrixOffset / numOfColumns) << characterSizeShift);
+        return (verticalCounter >= Math.max(rowTop, firstOutputLine));
+    }
+
+    /**
+     * Stops rendering the current frame a cell at a time, part way through the
+     * visible window. The cells are drawn on the CPU with memory and registers as
+     * they are now, and then the raster takes over from the current position,
+     * including the rest of the current line.
+     */
+    private void fallBackToRaster() {
+        if (cellRendering) {
+            if (cellsPending) {
+                // The rest of the Frame will be pixels, so the cells are drawn on the CPU.
+                renderCells();
+            }
+            cellRendering = false;
+
+            int frameLine = verticalCounter - 10;
+            lineInFrame = (frameLine >= frameTop) && (frameLine < frameBottom);
+            if (lineInFrame) {
+                pixelCounter = ((frameLine - frameTop) * frameWidth)
+                        + Math.max(0, Math.min(horizontalCounter, frameRight) - frameLeft);
+            }
+        }
+        rasterFallbackFrames = RASTER_FALLBACK_FRAMES;
+    }
+
+    /**
+     * Invoked before one of the registers that affect the layout or colours of the
+     * character cells is written. If the value changes while the visible part of
+     * the frame is being output, the frame can't be rendered a cell at a time, so
+     * the Frame is brought up to date with the old register values, and the rest
+     * of it is rendered by the raster.
+     * 
+     * @param address The address of the register being written.
+     * @param value   The value being written to the register.
+     */
+    private void layoutRegisterWritten(int address, int value) {
+        // The top bit of register 3 is the bottom bit of the raster line.
+        int mask = (address == VIC_REG_3 ? 0x7F : 0xFF);
+        if (((mem[address] ^ value) & mask) == 0) {
+            return;
+        }
+
+        int frameLine = verticalCounter - 10;
+        if ((frameLine >= frameTop) && (frameLine < frameBottom)) {
+            fallBackToRaster();
+        }
+
+        layoutChangeFrame = cellFrameNumber;
+    }
+
     /**
      * Emulates a cycle where rendering is skipped. This is intended to be used by
      * every cycle in a frame whose rendering is being skipped. All this method does
@@ -571,6 +780,10 @@ public class Vic extends MemoryMappedChip {
     public boolean emulateSkipCycle() {
         boolean frameComplete = false;
 
+        // No cells are rendered for a skipped frame, so memory writes during it never
+        // need the raster to take over.
+        cellsPending = false;
+
         // Increment the horizontal counter.
         horizontalCounter = horizontalCounter + 4;
 
@@ -583,6 +796,9 @@ public class Vic extends MemoryMappedChip {
             if (verticalCounter >= machineType.getTotalScreenHeight()) {
                 verticalCounter = 0;
                 frameComplete = true;
+
+                // The cells of the next frame are pending, as after a rendered frame.
+                cellsPending = true;
             }
 
             // Update raster line in VIC registers.
@@ -594,6 +810,9 @@ public class Vic extends MemoryMappedChip {
             }
         }
 
+        // The sound is generated whether or not the frame is rendered.
+        sound.emulateCycle();
+
         return frameComplete;
     }
 
@@ -615,7 +834,7 @@ public class Vic extends MemoryMappedChip {
         int charDataOffset = 0;
 
         // Get a local reference to the current Frame's pixel array.
-        short[] framePixels = frames[activeFrame].framePixels;
+        ByteBuffer framePixels = backFrame.framePixels;
 
         // TODO: Verify that this is correct, for both PAL and NTSC. It almost certainly isn't.
         if (verticalCounter > 9) {
@@ -635,7 +854,8 @@ public class Vic extends MemoryMappedChip {
                     // Colour Matrix via the top 4 lines of the data bus (DB8-DB11), which are 
                     // wired directly from colour RAM in to the VIC chip.
                     cellColourIndex = mem[colourMemoryStart + videoMatrixCounter] & 0x0F;
-                    cellColour = vicColours[cellColourIndex];
+                    cellColour = (byte) cellColourIndex;
+                    cellColourPattern = colourPatterns[cellColourIndex];
 
                     // Increment the video matrix counter.
                     videoMatrixCounter++;
@@ -643,6 +863,10 @@ public class Vic extends MemoryMappedChip {
                     // Toggle fetch toggle.
                     fetchToggle = FETCH_CHAR_DATA;
 
+                    // The sound is clocked on every cycle, including this early exit, so
+                    // that rendered and skipped frames advance it by the same amount.
+                    sound.emulateCycle();
+
                     return frameRenderComplete;
 
                 } else {
@@ -652,19 +876,26 @@ public class Vic extends MemoryMappedChip {
                     // Fetch cell data.
                     cellData = mem[charDataOffset];
 
-                    // Plot pixels.
-                    framePixels[pixelCounter++] = ((cellData & 0x80) == 0 ? backgroundColour : cellColour);
-                    framePixels[pixelCounter++] = ((cellData & 0x40) == 0 ? backgroundColour : cellColour);
-                    framePixels[pixelCounter++] = ((cellData & 0x20) == 0 ? backgroundColour : cellColour);
-                    framePixels[pixelCounter++] = ((cellData & 0x10) == 0 ? backgroundColour : cellColour);
+                    if (backgroundNibblePixelsInvalid) {
+                        updateBackgroundNibblePixels();
+                    }
+
+                    // Plot pixels, if within the Frame. Each nibble of the bitmap is written as
+                    // four pixels packed into a single int.
+                    if (lineInFrame && (horizontalCounter >= frameLeft) && (horizontalCounter < frameRight)) {
+                        int nibble = (cellData >> 4) & 0x0F;
+                        framePixels.putInt(pixelCounter,
+                                backgroundNibblePixels[nibble] | (cellColourPattern & nibbleMasks[nibble]));
+                        pixelCounter += 4;
+                    }
 
                     horizontalCounter = horizontalCounter + 4;
 
-                    if (horizontalCounter < machineType.getTotalScreenWidth()) {
-                        framePixels[pixelCounter++] = ((cellData & 0x08) == 0 ? backgroundColour : cellColour);
-                        framePixels[pixelCounter++] = ((cellData & 0x04) == 0 ? backgroundColour : cellColour);
-                        framePixels[pixelCounter++] = ((cellData & 0x02) == 0 ? backgroundColour : cellColour);
-                        framePixels[pixelCounter++] = ((cellData & 0x01) == 0 ? backgroundColour : cellColour);
+                    if (lineInFrame && (horizontalCounter >= frameLeft) && (horizontalCounter < frameRight)) {
+                        int nibble = cellData & 0x0F;
+                        framePixels.putInt(pixelCounter,
+                                backgroundNibblePixels[nibble] | (cellColourPattern & nibbleMasks[nibble]));
+                        pixelCounter += 4;
                     }
 
                     // Toggle fetch toggle.
@@ -673,11 +904,11 @@ public class Vic extends MemoryMappedChip {
             } else {
                 cellData = mem[DEFAULT_FETCH_ADDRESS];
 
-                // Output four border pixels.
-                framePixels[pixelCounter++] = borderColour;
-                framePixels[pixelCounter++] = borderColour;
-                framePixels[pixelCounter++] = borderColour;
-                framePixels[pixelCounter++] = borderColour;
+                // Output four border pixels, if within the Frame.
+                if (lineInFrame && (horizontalCounter >= frameLeft) && (horizontalCounter < frameRight)) {
+                    framePixels.putInt(pixelCounter, colourPatterns[borderColour]);
+                    pixelCounter += 4;
+                }
             }
 
         } else {
@@ -690,7 +921,23 @@ public class Vic extends MemoryMappedChip {
         // If end of line is reached, reset horiz counter and increment vert counter.
         if (horizontalCounter >= machineType.getTotalScreenWidth()) {
             horizontalCounter = 0;
+
+            if (lineInFrame) {
+                // Record a hash of the line just output, so that changed lines can be found.
+                backFrame.lineHashes[verticalCounter - 10 - frameTop] = hashLine(framePixels,
+                        pixelCounter - frameWidth, frameWidth);
+            }
+
             verticalCounter++;
+            int frameLine = verticalCounter - 10;
+            lineInFrame = !cellRendering && (frameLine >= frameTop) && (frameLine < frameBottom);
+            if (lineInFrame) {
+                pixelCounter = (frameLine - frameTop) * frameWidth;
+            } else if (cellRendering && cellsPending && (frameLine >= frameBottom)) {
+                // The visible part of the frame is complete, so the cells are rendered now,
+                // before the game starts changing them for the next frame.
+                renderFrameCells();
+            }
 
             // If last line has been reached, reset all counters.
             if (verticalCounter >= machineType.getTotalScreenHeight()) {
@@ -701,14 +948,34 @@ public class Vic extends MemoryMappedChip {
                 cellDepthCounter = 0;
                 charMemoryCellDepthStart = charMemoryStart;
 
-                synchronized (frames) {
-                    // Mark the current frame as complete.
-                    frames[activeFrame].ready = true;
+                if (cellRendering) {
+                    if (cellsPending) {
+                        renderFrameCells();
+                    }
+                } else {
+                    // Some or all of the Frame was output by the raster, so it doesn't hold
+                    // the cells of any one cell frame.
+                    backFrame.cellFrameNumber = -1;
+                    backFrame.tileFrame = false;
+                }
+
+                if ((frameCapture != null) && frameCapture.isPending()) {
+                    if (backFrame.tileFrame) {
+                        // A capture needs pixels, so this frame's cells are drawn on the CPU.
+                        renderCells();
+                    }
+                    frameCapture.frameCompleted(backFrame.framePixels, frameWidth, frameHeight);
+                }
+
+                // Hand the completed frame over to the consumer.
+                backFrame = frameBuffer.publish();
 
-                    // Toggle the active frame.
-                    activeFrame = ((activeFrame + 1) % 2);
-                    frames[activeFrame].ready = false;
+                // Decide how the next frame will be rendered.
+                if (rasterFallbackFrames > 0) {
+                    rasterFallbackFrames--;
                 }
+                cellRendering = (renderMode != RenderMode.RASTER) && (rasterFallbackFrames == 0);
+                cellsPending = true;
 
                 frameRenderComplete = true;
 
@@ -739,102 +1006,328 @@ public class Vic extends MemoryMappedChip {
             }
         }
         
-        // 5-bit counter in the 6561, but only bottom 4 bits are used. Other bit might have been used for 6562/3.
-        soundClockDividerCounter = ((soundClockDividerCounter + 1) & 0xF);
-        
-        for (int i = 0; i < 4; i++) {
-            if ((voiceClockDividerTriggers[i] & soundClockDividerCounter) == 0) {
-                voiceCounters[i] = (voiceCounters[i] + 1) & 0x7F;
-                if (voiceCounters[i] == 0) {
-                    // Reload the voice counter from the control register.
-                    voiceCounters[i] = (mem[VIC_REG_10 + i] & 0x7F);
-
-                    if (i == 3) {
-                        // For Noise voice, we perform a shift of the LFSR whenever the counter is
-                        // reloaded, and only shift the main voice shift register when LFSR bit 0 
-                        // changes from LOW to HIGH, i.e. on the positive edge.
-                        if ((lastNoiseLFSR0 == 0) && (noiseLFSR & 0x0001) > 0) {
-                            voiceShiftRegisters[i] = (((voiceShiftRegisters[i] & 0x7F) << 1)
-                                    | ((mem[VIC_REG_10 + i] & 0x80) > 0 ? (((voiceShiftRegisters[i] & 0x80) >> 7) ^ 1)
-                                            : 0));
-                        }
-
-                        // The LFSR taps are bits 3, 12, 14 and 15.
-                        int bit3 = (noiseLFSR >> 3) & 1;
-                        int bit12 = (noiseLFSR >> 12) & 1;
-                        int bit14 = (noiseLFSR >> 14) & 1;
-                        int bit15 = (noiseLFSR >> 15) & 1;
-                        int feedback = (((bit3 ^ bit12) ^ (bit14 ^ bit15)) ^ 1);
-                        lastNoiseLFSR0 = (noiseLFSR & 0x1);
-                        noiseLFSR = (((noiseLFSR << 1) | (((feedback & ((mem[VIC_REG_10 + i] & 0x80) >> 7)) ^ 1) & 0x1))
-                                & 0xFFFF);
+        sound.emulateCycle();
 
-                    } else {
-                        // For the three other voices, we shift the voice shift register whenever the
-                        // counter is reloaded.
-                        voiceShiftRegisters[i] = (((voiceShiftRegisters[i] & 0x7F) << 1)
-                                | ((mem[VIC_REG_10 + i] & 0x80) > 0 ? (((voiceShiftRegisters[i] & 0x80) >> 7) ^ 1)
-                                        : 0));
-                    }
-                }
+        return frameRenderComplete;
+    }
+    
+    /**
+     * Renders the character cells of the current frame as per the RenderMode,
+     * i.e. by capturing the tile data for the GPU if possible, otherwise by
+     * drawing them on the CPU.
+     */
+    private void renderFrameCells() {
+        if ((renderMode != RenderMode.GPU_TILES) || !captureTiles()) {
+            renderCells();
+        }
+    }
+
+    /**
+     * Captures the screen codes, cell colours and glyphs of the current frame in
+     * to the back Frame's tile data, along with the layout and colours that the
+     * GPU needs to draw them. The Frame's pixels are left as they were.
+     * 
+     * @return true if the tile data was captured, or false if the video matrix is
+     *         too big for the tile data, in which case the cells must be drawn on
+     *         the CPU.
+     */
+    private boolean captureTiles() {
+        int firstLine = Math.max(textScreenTop, 10);
+        int lastLine = Math.min(textScreenBottom, Math.min(machineType.getTotalScreenHeight(), frameBottom + 10));
+        int rows = (lastLine > firstLine ? (lastLine - firstLine + characterSize - 1) >> characterSizeShift : 0);
+        int cells = rows * numOfColumns;
+        if (cells > Frame.TILE_MATRIX_SIZE) {
+            return false;
+        }
+
+        ByteBuffer tileData = backFrame.tileData;
+        int maxScreenCode = 0;
+        for (int i = 0; i < cells; i++) {
+            int screenCode = mem[videoMemoryStart + i];
+            tileData.put(i, (byte) screenCode);
+            tileData.put(Frame.TILE_COLOUR_OFFSET + i, (byte) (mem[colourMemoryStart + i] & 0x0F));
+            if (screenCode > maxScreenCode) {
+                maxScreenCode = screenCode;
             }
         }
 
-        // If enough cycles have elapsed since the last sample, then output another.
-        if (--cyclesToNextSample <= 0) {
-            writeSample();
-            cyclesToNextSample += cyclesPerSample;
+        // Only the glyphs up to the highest screen code in use are needed.
+        int glyphBytes = (maxScreenCode + 1) << characterSizeShift;
+        for (int i = 0; i < glyphBytes; i++) {
+            tileData.put(Frame.TILE_GLYPH_OFFSET + i, (byte) mem[(charMemoryStart + i) & 0x3FFF]);
         }
 
-        return frameRenderComplete;
+        backFrame.tileDataSize = Frame.TILE_GLYPH_OFFSET + glyphBytes;
+        backFrame.tileScreenLeft = textScreenLeft - frameLeft;
+        backFrame.tileScreenTop = firstLine - 10 - frameTop;
+        backFrame.tileScreenRight = Math.min(textScreenRight, machineType.getTotalScreenWidth()) - frameLeft;
+        backFrame.tileScreenBottom = lastLine - 10 - frameTop;
+        backFrame.tileColumns = numOfColumns;
+        backFrame.tileCharacterSize = characterSize;
+        backFrame.tileBackgroundColour = backgroundColour;
+        backFrame.tileBorderColour = borderColour;
+        backFrame.tileFrame = true;
+
+        cellsRedrawn = cells;
+        cellsPending = false;
+        return true;
     }
-    
+
     /**
-     * Writes a single sample to the sample buffer. If the buffer is full after
-     * writing the sample, then the whole buffer is written out.
+     * Renders the character cells of the current frame in to the back Frame. Only
+     * the cells whose screen code, colour or glyph have changed since that Frame's
+     * cells were last rendered are redrawn, unless the layout or colours have
+     * changed, in which case the whole Frame is redrawn. The result is the same
+     * as the raster would have output, provided that nothing changed during the
+     * visible part of the frame.
      */
-    public void writeSample() {
-        short sample = 0;
+    private void renderCells() {
+        ByteBuffer framePixels = backFrame.framePixels;
+        long renderedFrame = backFrame.cellFrameNumber;
+        boolean fullRedraw = ((renderedFrame < 0) || (renderedFrame < layoutChangeFrame));
+        int redrawCount = 0;
+
+        if (backgroundNibblePixelsInvalid) {
+            updateBackgroundNibblePixels();
+        }
 
-        for (int i = 0; i < 4; i++) {
-            if ((mem[VIC_REG_10 + i] & 0x80) > 0) {
-                // Voice enabled. First bit of SR goes out.
-                // sample += ((voiceShiftRegisters[i] & 0x01) * 2500); // TODO: Try shifting to
-                // multiply by 2048
-                sample += ((voiceShiftRegisters[i] & 0x01) << 11);
+        if (fullRedraw) {
+            // Everything outside of the cells is border.
+            int borderPattern = colourPatterns[borderColour];
+            int frameSize = frameWidth * frameHeight;
+            int i = 0;
+            for (; i + 4 <= frameSize; i += 4) {
+                framePixels.putInt(i, borderPattern);
+            }
+            for (; i < frameSize; i++) {
+                framePixels.put(i, borderColour);
             }
         }
 
-        sampleBuffer[sampleBufferOffset + 0] = (short) (((sample >> 2) * masterVolume) & 0x7FFF); // TODO: Try shifting.
+        // No lines are output before line 10, so the first row starts there if the
+        // text screen starts any higher up.
+        int firstLine = Math.max(textScreenTop, 10);
+        int lastLine = Math.min(textScreenBottom, Math.min(machineType.getTotalScreenHeight(), frameBottom + 10));
+
+        for (int row = 0, rowTop = firstLine; rowTop < lastLine; row++, rowTop += characterSize) {
+            for (int column = 0; column < numOfColumns; column++) {
+                int matrixOffset = (row * numOfColumns) + column;
+                int screenCode = mem[videoMemoryStart + matrixOffset];
+                int glyphStart = charMemoryStart + (screenCode << characterSizeShift);
+
+                boolean changed = fullRedraw
+                        || (addressChangeFrames[videoMemoryStart + matrixOffset] > renderedFrame)
+                        || (addressChangeFrames[colourMemoryStart + matrixOffset] > renderedFrame);
+                for (int depth = 0; !changed && (depth < characterSize); depth++) {
+                    changed = (addressChangeFrames[(glyphStart + depth) & 0x3FFF] > renderedFrame);
+                }
+                if (!changed) {
+                    continue;
+                }
+
+                int colourPattern = colourPatterns[mem[colourMemoryStart + matrixOffset] & 0x0F];
+                int left = textScreenLeft + (column << 3);
+                redrawCount++;
+
+                for (int depth = 0; depth < characterSize; depth++) {
+                    int frameLine = rowTop + depth - 10 - frameTop;
+                    if ((frameLine < 0) || (rowTop + depth >= lastLine)) {
+                        continue;
+                    }
+                    int bitmap = mem[(glyphStart + depth) & 0x3FFF];
+                    int lineStart = frameLine * frameWidth - frameLeft;
+
+                    if ((left >= frameLeft) && (left < frameRight)) {
+                        int nibble = (bitmap >> 4) & 0x0F;
+                        framePixels.putInt(lineStart + left,
+                                backgroundNibblePixels[nibble] | (colourPattern & nibbleMasks[nibble]));
+                    }
+                    if ((left + 4 >= frameLeft) && (left + 4 < frameRight)) {
+                        int nibble = bitmap & 0x0F;
+                        framePixels.putInt(lineStart + left + 4,
+                                backgroundNibblePixels[nibble] | (colourPattern & nibbleMasks[nibble]));
+                    }
+                    linesRedrawn[frameLine] = true;
+                }
+            }
+        }
 
-        // If the sample buffer is full, write it out to the audio line.
-        if ((sampleBufferOffset += 1) == sampleBuffer.length) {
-            try {
-                if (!soundPaused)
-                    audioDevice.writeSamples(sampleBuffer, 0, sampleBuffer.length);
-            } catch (Throwable e) {
-                // An Exception or Error can occur here if the app is closing, so we catch and
-                // ignore.
+        // Update the hashes of the lines that were redrawn.
+        for (int line = 0; line < frameHeight; line++) {
+            if (fullRedraw || linesRedrawn[line]) {
+                backFrame.lineHashes[line] = hashLine(framePixels, line * frameWidth, frameWidth);
+                linesRedrawn[line] = false;
             }
-            sampleBufferOffset = 0;
         }
+
+        backFrame.cellFrameNumber = cellFrameNumber++;
+        backFrame.tileFrame = false;
+        cellsRedrawn = redrawCount;
+        cellsPending = false;
     }
 
     /**
-     * Gets the pixels for the current frame from the VIC chip.
+     * Creates the lookup table that expands each nibble of a character bitmap into
+     * four pixel masks packed into an int, for the given byte order.
      * 
-     * @return The pixels for the current frame. Returns null if there isn't one
-     *         that is ready.
-     */
-    public short[] getFramePixels() {
-        short[] framePixels = null;
-        synchronized (frames) {
-            Frame nonActiveFrame = frames[((activeFrame + 1) % 2)];
-            if (nonActiveFrame.ready) {
-                nonActiveFrame.ready = false;
-                framePixels = nonActiveFrame.framePixels;
+     * @param order The byte order of the buffer that the ints will be written to.
+     * 
+     * @return The nibble mask lookup table.
+     */
+    private static int[] createNibbleMasks(ByteOrder order) {
+        int[] masks = new int[16];
+        for (int nibble = 0; nibble < 16; nibble++) {
+            int mask = 0;
+            for (int pixel = 0; pixel < 4; pixel++) {
+                if ((nibble & (0x08 >> pixel)) != 0) {
+                    // The leftmost pixel is the most significant bit of the nibble, and must be
+                    // at the lowest address.
+                    int shift = (order == ByteOrder.BIG_ENDIAN ? (3 - pixel) : pixel) * 8;
+                    mask |= (0xFF << shift);
+                }
             }
+            masks[nibble] = mask;
+        }
+        return masks;
+    }
+
+    /**
+     * Rebuilds the backgroundNibblePixels table for the current background colour.
+     */
+    private void updateBackgroundNibblePixels() {
+        int backgroundPattern = colourPatterns[backgroundColour];
+        for (int nibble = 0; nibble < 16; nibble++) {
+            backgroundNibblePixels[nibble] = backgroundPattern & ~nibbleMasks[nibble];
         }
-        return framePixels;
+        backgroundNibblePixelsInvalid = false;
+    }
+
+    /**
+     * Calculates a hash of the given line of pixels.
+     * 
+     * @param pixels The frame pixels that the line is in.
+     * @param offset The offset of the start of the line.
+     * @param length The number of pixels in the line.
+     * 
+     * @return The hash of the line of pixels.
+     */
+    private static long hashLine(ByteBuffer pixels, int offset, int length) {
+        long hash = 0xCBF29CE484222325L;
+        int end = offset + length;
+        int i = offset;
+
+        // Eight pixels at a time, then any left over one at a time.
+        for (; i + 8 <= end; i += 8) {
+            hash = (hash ^ pixels.getLong(i)) * 0x100000001B3L;
+        }
+        for (; i < end; i++) {
+            hash = (hash ^ pixels.get(i)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the sound generation part of the VIC chip.
+     * 
+     * @return The VicSound of this VIC chip.
+     */
+    public VicSound getSound() {
+        return sound;
+    }
+
+    /**
+     * Gets the VIC palette, which maps the 4-bit pixel values in each frame to
+     * RGB565 colours.
+     * 
+     * @return The VIC palette as RGB565 colours.
+     */
+    public static short[] getPalette() {
+        return vicColours.clone();
+    }
+
+    /**
+     * Gets the width of each Frame.
+     * 
+     * @return The width of each Frame in pixels.
+     */
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    /**
+     * Gets the height of each Frame.
+     * 
+     * @return The height of each Frame in pixels.
+     */
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    /**
+     * Gets the current frame from the VIC chip. The returned Frame is owned by the
+     * caller until the next call that returns a Frame, at which point it is given
+     * back to the VIC to be written over. This method should therefore only ever
+     * be called by a single consumer thread.
+     * 
+     * @return The current frame. Returns null if there isn't one that is ready.
+     */
+    public Frame getFrame() {
+        return frameBuffer.acquire();
+    }
+
+    /**
+     * Sets the FrameCapture that completed Frames are given to when a capture has
+     * been requested.
+     * 
+     * @param frameCapture The FrameCapture to use (can be null).
+     */
+    public void setFrameCapture(FrameCapture frameCapture) {
+        this.frameCapture = frameCapture;
+    }
+
+    /**
+     * Sets how the pixels of each Frame are rendered. The change takes effect from
+     * the start of the next frame.
+     * 
+     * @param renderMode The RenderMode to use.
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @return the renderMode
+     */
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Returns whether the frame currently being emulated is being rendered from its
+     * cells. This is false in the CELL and GPU_TILES modes while the VIC has fallen
+     * back to the raster.
+     * 
+     * @return true if the current frame is being rendered from its cells.
+     */
+    public boolean isCellRendering() {
+        return cellRendering;
+    }
+
+    /**
+     * @return the number of cells redrawn the last time the cells were rendered.
+     */
+    public int getCellsRedrawn() {
+        return cellsRedrawn;
+    }
+
+    /**
+     * Gets the TripleBuffer that hands Frames over to the consumer. This is where
+     * the frame hand over policy is set, and the dropped and repeated frame
+     * counts are kept.
+     * 
+     * @return The TripleBuffer that hands Frames over to the consumer.
+     */
+    public TripleBuffer<Frame> getFrameBuffer() {
+        return frameBuffer;
     }
 }
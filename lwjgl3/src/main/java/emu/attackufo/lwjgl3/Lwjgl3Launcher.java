@@ -36,6 +36,12 @@ public class Lwjgl3Launcher {
         //// useful for testing performance, but can also be very stressful to some hardware.
         //// You may also need to configure GPU drivers to fully disable Vsync; this can cause screen tearing.
 
+        //// Four 512 byte audio buffers hold 1024 samples, i.e. about 23ms of the VIC's 44100 Hz mono
+        //// sound. The device only needs a short queue in every pacing mode, since the VIC sound is
+        //// buffered ahead of it by AudioOutput's ring buffer, whose depth is configurable, and
+        //// everything the device queues adds to the latency, in particular when paced by the audio clock.
+        configuration.setAudioConfig(16, 512, 4);
+
         configuration.setWindowedMode(540, 900);
         //// You can change these files; they are in lwjgl3/src/main/resources/ .
         //// They can also be loaded from the root of assets/ .